@@ -30,7 +30,6 @@ import com.telly.groundy.annotations.Param;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.lang.annotation.Annotation;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumSet;
@@ -39,6 +38,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
@@ -54,21 +54,22 @@ import javax.lang.model.SourceVersion;
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.AnnotationValue;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
 import javax.lang.model.util.ElementKindVisitor6;
 import javax.lang.model.util.Types;
 import javax.tools.JavaFileObject;
 
-@SupportedAnnotationTypes({
-    GroundyCodeGen.SUCCESS, GroundyCodeGen.FAILED, GroundyCodeGen.START, GroundyCodeGen.CANCEL,
-    GroundyCodeGen.PROGRESS, GroundyCodeGen.CALLBACK
-})
+// tasks are found among the types compiled along with the annotated handlers
+@SupportedAnnotationTypes("com.telly.groundy.annotations.*")
 @SupportedSourceVersion(SourceVersion.RELEASE_6)
 public class GroundyCodeGen extends AbstractProcessor {
 
@@ -80,21 +81,50 @@ public class GroundyCodeGen extends AbstractProcessor {
   public static final String PROGRESS = "com.telly.groundy.annotations.OnProgress";
   public static final String CALLBACK = "com.telly.groundy.annotations.OnCallback";
   public static final String GROUNDY_VERBOSE = "GROUNDY_VERBOSE";
+  private static final String GROUNDY_TASK = "com.telly.groundy.GroundyTask";
+  // callback annotations and the name of their CallbackKind constant
+  private static final Map<String, String> CALLBACK_KINDS = new HashMap<String, String>();
+
+  static {
+    CALLBACK_KINDS.put(SUCCESS, "SUCCESS");
+    CALLBACK_KINDS.put(FAILED, "FAILURE");
+    CALLBACK_KINDS.put(START, "START");
+    CALLBACK_KINDS.put(CANCEL, "CANCEL");
+    CALLBACK_KINDS.put(PROGRESS, "PROGRESS");
+    CALLBACK_KINDS.put(CALLBACK, "CALLBACK");
+  }
 
   private final Map<HandlerAndTask, Set<ProxyImplContent>> implMap =
       new HashMap<HandlerAndTask, Set<ProxyImplContent>>();
+  // task classes found so far, sorted by name so that the generated factory is stable
+  private final Map<String, TypeElement> tasks = new TreeMap<String, TypeElement>();
+  // proxies generated so far, keyed by their class name
+  private final Map<String, HandlerAndTask> generatedProxies =
+      new TreeMap<String, HandlerAndTask>();
+  // handlers that can't be called from generated code; reflection is used for them
+  private final Set<Element> unsupportedHandlers = new HashSet<Element>();
+  // tasks and proxies already listed in a generated factory or registry, which can't be rewritten
+  private final Set<String> writtenTasks = new HashSet<String>();
+  private final Set<String> writtenProxies = new HashSet<String>();
+  private final Set<String> writtenFactoryPackages = new HashSet<String>();
+  private final Set<String> writtenRegistryPackages = new HashSet<String>();
   private boolean verboseMode;
 
   @Override
   public boolean process(Set<? extends TypeElement> typeElements, RoundEnvironment env) {
-    if (typeElements.isEmpty()) {
-      return true;
-    }
-
     String groundyVerbose = System.getenv(GROUNDY_VERBOSE);
     verboseMode = String.valueOf(Boolean.TRUE).equals(groundyVerbose);
 
+    if (env.processingOver()) {
+      // files created in the last round are not compiled along with the rest
+      return false;
+    }
+    collectTasks(env.getRootElements());
+
     for (TypeElement annotationElement : typeElements) {
+      if (!CALLBACK_KINDS.containsKey(annotationElement.getQualifiedName().toString())) {
+        continue;
+      }
 
       Set<? extends Element> annotatedElements = env.getElementsAnnotatedWith(annotationElement);
       for (Element annotatedElement : annotatedElements) {
@@ -107,16 +137,339 @@ public class GroundyCodeGen extends AbstractProcessor {
     }
 
     mergeProxiesWithClassHierarchy();
+    for (HandlerAndTask handlerAndTask : new ArrayList<HandlerAndTask>(implMap.keySet())) {
+      if (unsupportedHandlers.contains(handlerAndTask.handler)) {
+        implMap.remove(handlerAndTask);
+      }
+    }
 
     for (Map.Entry<HandlerAndTask, Set<ProxyImplContent>> elementSetEntry : implMap.entrySet()) {
       HandlerAndTask proxyClassName = elementSetEntry.getKey();
       Set<ProxyImplContent> callbacks = elementSetEntry.getValue();
       generateProxy(proxyClassName, callbacks);
     }
+    // proxies are generated once; next rounds only see the generated sources
+    implMap.clear();
+
+    // usually everything is found in the first round; later rounds only add the packages that
+    // were not written yet, anything else is left to reflection
+    generateTaskFactories();
+    generateProxyRegistries();
+
+    return false;
+  }
 
+  /**
+   * Looks for the tasks that can be instantiated from generated code: public, concrete, not inner
+   * and with a public no-arg constructor.
+   */
+  private void collectTasks(Collection<? extends Element> elements) {
+    Types types = processingEnv.getTypeUtils();
+    TypeElement groundyTask = processingEnv.getElementUtils().getTypeElement(GROUNDY_TASK);
+    if (groundyTask == null) {
+      return;
+    }
+    TypeMirror groundyTaskType = types.erasure(groundyTask.asType());
+
+    for (Element element : elements) {
+      if (element.getKind() != ElementKind.CLASS) {
+        continue;
+      }
+      TypeElement type = (TypeElement) element;
+      collectTasks(ElementFilter.typesIn(type.getEnclosedElements()));
+
+      Set<Modifier> modifiers = type.getModifiers();
+      boolean nested = type.getEnclosingElement().getKind() != ElementKind.PACKAGE;
+      if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.ABSTRACT)
+          || (nested && !modifiers.contains(Modifier.STATIC))
+          || !types.isSubtype(types.erasure(type.asType()), groundyTaskType)
+          || !hasPublicNoArgConstructor(type) || !isAccessible(type.getEnclosingElement())) {
+        continue;
+      }
+      tasks.put(type.getQualifiedName().toString(), type);
+    }
+  }
+
+  private static boolean hasPublicNoArgConstructor(TypeElement type) {
+    for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+      if (constructor.getParameters().isEmpty()
+          && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isAccessible(Element element) {
+    while (element.getKind() != ElementKind.PACKAGE) {
+      if (!element.getModifiers().contains(Modifier.PUBLIC)) {
+        return false;
+      }
+      element = element.getEnclosingElement();
+    }
     return true;
   }
 
+  /** @return true if the type can be referenced from code in the specified package */
+  private static boolean isVisibleFrom(Element type, String packageName) {
+    boolean samePackage = packageOf(type).equals(packageName);
+    for (Element element = type; element.getKind() != ElementKind.PACKAGE;
+        element = element.getEnclosingElement()) {
+      Set<Modifier> modifiers = element.getModifiers();
+      if (!element.getKind().isClass() && !element.getKind().isInterface()) {
+        return false;
+      }
+      if (modifiers.contains(Modifier.PRIVATE)
+          || (!samePackage && !modifiers.contains(Modifier.PUBLIC))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String packageOf(Element element) {
+    while (element.getKind() != ElementKind.PACKAGE) {
+      element = element.getEnclosingElement();
+    }
+    return ((PackageElement) element).getQualifiedName().toString();
+  }
+
+  /** @return the name of the type without its package, using '$' for nested types */
+  private static String flatName(Element type) {
+    String name = type.getSimpleName().toString();
+    for (Element element = type.getEnclosingElement(); element.getKind() != ElementKind.PACKAGE;
+        element = element.getEnclosingElement()) {
+      name = element.getSimpleName() + "$" + name;
+    }
+    return name;
+  }
+
+  /**
+   * Generates, in every package with tasks, a factory that creates them without using reflection.
+   * The runtime looks for it in the package of the task, so separately compiled modules never
+   * generate the same class.
+   */
+  private void generateTaskFactories() {
+    Map<String, List<String>> byPackage = new TreeMap<String, List<String>>();
+    for (TypeElement task : tasks.values()) {
+      if (!writtenTasks.add(task.getQualifiedName().toString())) {
+        continue;
+      }
+      String packageName = packageOf(task);
+      if (writtenFactoryPackages.contains(packageName)) {
+        LOGGER.info(task + " was found after the task factory of its package was generated;"
+            + " it will be created through reflection.");
+        continue;
+      }
+      List<String> packageTasks = byPackage.get(packageName);
+      if (packageTasks == null) {
+        packageTasks = new ArrayList<String>();
+        byPackage.put(packageName, packageTasks);
+      }
+      packageTasks.add(task.getQualifiedName().toString());
+    }
+
+    for (Map.Entry<String, List<String>> packageEntry : byPackage.entrySet()) {
+      writtenFactoryPackages.add(packageEntry.getKey());
+      generateTaskFactory(packageEntry.getKey(), packageEntry.getValue());
+    }
+  }
+
+  private void generateTaskFactory(String packageName, List<String> packageTasks) {
+    StringWriter classContent = new StringWriter();
+    JavaWriter javaWriter = new JavaWriter(classContent);
+    try {
+      String className = TaskFactory.GENERATED_CLASS_NAME;
+
+      javaWriter.emitSingleLineComment("auto-generated file; don't modify");
+      javaWriter.emitPackage(packageName);
+      javaWriter.emitImports("com.telly.groundy.GroundyTask", "com.telly.groundy.TaskFactory",
+          HashMap.class.getName(), Map.class.getName());
+
+      javaWriter.beginType(className, "class", EnumSet.of(Modifier.PUBLIC), null, "TaskFactory");
+      javaWriter.emitField("Map<Class<?>, Integer>", "indexes",
+          EnumSet.of(Modifier.PRIVATE, Modifier.FINAL), "new HashMap<Class<?>, Integer>()");
+
+      javaWriter.beginMethod(null, className, EnumSet.of(Modifier.PUBLIC));
+      int index = 0;
+      for (String task : packageTasks) {
+        javaWriter.emitStatement("indexes.put(" + task + ".class, " + index++ + ")");
+      }
+      javaWriter.endMethod();
+
+      javaWriter.beginMethod("GroundyTask", "newTask", EnumSet.of(Modifier.PUBLIC),
+          "Class<? extends GroundyTask>", "taskClass");
+      javaWriter.emitStatement("Integer index = indexes.get(taskClass)");
+      javaWriter.beginControlFlow("if (index == null)");
+      javaWriter.emitStatement("return null");
+      javaWriter.endControlFlow();
+      javaWriter.beginControlFlow("switch (index)");
+      index = 0;
+      for (String task : packageTasks) {
+        javaWriter.emitStatement("case " + index++ + ": return new " + task + "()");
+      }
+      javaWriter.emitStatement("default: return null");
+      javaWriter.endControlFlow();
+      javaWriter.endMethod();
+
+      javaWriter.endType();
+      javaWriter.close();
+
+      String fileContent = classContent.toString();
+      if (verboseMode) {
+        LOGGER.info("Generated task factory for " + packageTasks.size() + " tasks of "
+            + packageName);
+        System.out.println(fileContent);
+      }
+
+      List<Element> originatingElements = new ArrayList<Element>();
+      for (String task : packageTasks) {
+        originatingElements.add(tasks.get(task));
+      }
+      writeSourceFile(qualifiedName(packageName, className), fileContent,
+          originatingElements.toArray(new Element[originatingElements.size()]));
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(-1);
+    }
+  }
+
+  /**
+   * Generates the registries used to find the proxy of a handler and task pair with a single
+   * lookup, instead of probing for proxy classes by name. Proxies are package private, so every
+   * package gets its own registry, which the runtime looks for in the package of the handler.
+   */
+  private void generateProxyRegistries() {
+    Map<String, List<HandlerAndTask>> byPackage = new TreeMap<String, List<HandlerAndTask>>();
+    for (HandlerAndTask handlerAndTask : sortedByHandler()) {
+      String packageName = packageOf(handlerAndTask.handler);
+      if (!writtenProxies.add(qualifiedName(packageName, handlerAndTask.generateClassName()))) {
+        continue;
+      }
+      if (writtenRegistryPackages.contains(packageName)) {
+        LOGGER.info(handlerAndTask.generateClassName() + " was generated after the registry of"
+            + " its package; it will be found through reflection.");
+        continue;
+      }
+      List<HandlerAndTask> packageProxies = byPackage.get(packageName);
+      if (packageProxies == null) {
+        packageProxies = new ArrayList<HandlerAndTask>();
+        byPackage.put(packageName, packageProxies);
+      }
+      packageProxies.add(handlerAndTask);
+    }
+
+    for (Map.Entry<String, List<HandlerAndTask>> packageEntry : byPackage.entrySet()) {
+      writtenRegistryPackages.add(packageEntry.getKey());
+      generatePackageRegistry(packageEntry.getKey(), packageEntry.getValue());
+    }
+  }
+
+  private static String qualifiedName(String packageName, String simpleName) {
+    return packageName.length() == 0 ? simpleName : packageName + "." + simpleName;
+  }
+
+  /** Generates the registry of the proxies of a package, which can see package private types. */
+  private void generatePackageRegistry(String packageName, List<HandlerAndTask> proxies) {
+    StringWriter classContent = new StringWriter();
+    JavaWriter javaWriter = new JavaWriter(classContent);
+    try {
+      String className = ProxyRegistry.GENERATED_CLASS_NAME;
+
+      javaWriter.emitSingleLineComment("auto-generated file; don't modify");
+      javaWriter.emitPackage(packageName);
+      javaWriter.emitImports("com.telly.groundy.ProxyRegistry", "com.telly.groundy.ResultProxy",
+          HashMap.class.getName(), Map.class.getName());
+
+      javaWriter.beginType(className, "class", EnumSet.of(Modifier.PUBLIC), null,
+          "ProxyRegistry");
+      javaWriter.emitField("Map<Class<?>, Map<Class<?>, Integer>>", "indexes",
+          EnumSet.of(Modifier.PRIVATE, Modifier.FINAL),
+          "new HashMap<Class<?>, Map<Class<?>, Integer>>()");
+
+      javaWriter.beginMethod(null, className, EnumSet.of(Modifier.PUBLIC));
+      javaWriter.emitStatement("Map<Class<?>, Integer> tasks");
+      String currentHandler = null;
+      int index = 0;
+      for (HandlerAndTask handlerAndTask : proxies) {
+        String handler = handlerAndTask.handler.toString();
+        if (!handler.equals(currentHandler)) {
+          currentHandler = handler;
+          javaWriter.emitStatement("tasks = new HashMap<Class<?>, Integer>()");
+          javaWriter.emitStatement("indexes.put(" + handler + ".class, tasks)");
+        }
+        javaWriter.emitStatement("tasks.put(" + handlerAndTask.task + ".class, " + index++ + ")");
+      }
+      javaWriter.endMethod();
+
+      javaWriter.beginMethod("ResultProxy", "getProxy", EnumSet.of(Modifier.PUBLIC),
+          "Class<?>", "handlerType", "Class<?>", "taskType");
+      javaWriter.emitStatement("Map<Class<?>, Integer> tasks = indexes.get(handlerType)");
+      javaWriter.emitStatement("Integer index = tasks == null ? null : tasks.get(taskType)");
+      javaWriter.beginControlFlow("if (index == null)");
+      javaWriter.emitStatement("return null");
+      javaWriter.endControlFlow();
+      javaWriter.beginControlFlow("switch (index)");
+      index = 0;
+      for (HandlerAndTask handlerAndTask : proxies) {
+        javaWriter.emitStatement("case " + index++ + ": return new "
+            + handlerAndTask.generateClassName() + "()");
+      }
+      javaWriter.emitStatement("default: return null");
+      javaWriter.endControlFlow();
+      javaWriter.endMethod();
+
+      javaWriter.endType();
+      javaWriter.close();
+
+      String fileContent = classContent.toString();
+      if (verboseMode) {
+        LOGGER.info("Generated registry for " + proxies.size() + " proxies of " + packageName);
+        System.out.println(fileContent);
+      }
+
+      List<Element> originatingElements = new ArrayList<Element>();
+      for (HandlerAndTask handlerAndTask : proxies) {
+        originatingElements.add(handlerAndTask.handler);
+      }
+      writeSourceFile(qualifiedName(packageName, className), fileContent,
+          originatingElements.toArray(new Element[originatingElements.size()]));
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(-1);
+    }
+  }
+
+  /** @return generated proxies, grouped by handler */
+  private List<HandlerAndTask> sortedByHandler() {
+    Map<String, List<HandlerAndTask>> byHandler = new TreeMap<String, List<HandlerAndTask>>();
+    for (HandlerAndTask handlerAndTask : generatedProxies.values()) {
+      String handler = handlerAndTask.handler.toString();
+      List<HandlerAndTask> handlerProxies = byHandler.get(handler);
+      if (handlerProxies == null) {
+        handlerProxies = new ArrayList<HandlerAndTask>();
+        byHandler.put(handler, handlerProxies);
+      }
+      handlerProxies.add(handlerAndTask);
+    }
+
+    List<HandlerAndTask> sorted = new ArrayList<HandlerAndTask>();
+    for (List<HandlerAndTask> handlerProxies : byHandler.values()) {
+      sorted.addAll(handlerProxies);
+    }
+    return sorted;
+  }
+
+  private void writeSourceFile(String fullClassName, String content, Element[] originatingElements)
+      throws IOException {
+    Filer filer = processingEnv.getFiler();
+    JavaFileObject sourceFile = filer.createSourceFile(fullClassName, originatingElements);
+    Writer writer = sourceFile.openWriter();
+    writer.write(content);
+    writer.flush();
+    writer.close();
+  }
+
   /**
    * Merges callbacks implementations taking into account the supper types of the handlers and
    * the tasks.
@@ -140,6 +493,9 @@ public class GroundyCodeGen extends AbstractProcessor {
       // 2. merge super handlers, for same task
       final Set<Element> superHandlers = getSuperClasses(handlerAndTask.handler);
       for (Element superHandler : superHandlers) {
+        if (unsupportedHandlers.contains(superHandler)) {
+          unsupportedHandlers.add(handlerAndTask.handler);
+        }
         final HandlerAndTask superHandlerAndTask = new HandlerAndTask(superHandler, handlerAndTask.task);
         if (implMap.containsKey(superHandlerAndTask)) {
           appendNonExistentCallbacks(superHandlerAndTask, handlerAndTask);
@@ -158,7 +514,9 @@ public class GroundyCodeGen extends AbstractProcessor {
 
   /**
    * Copy all callbacks implementations from -> to the specified set. It makes sure
-   * to copy the callbacks that don't exist already on the destination set.
+   * to copy the callbacks that don't exist already on the destination set. If a callback
+   * can't be invoked from the package of the destination handler, the handler is left to
+   * reflection.
    *
    * @param from key for the set of callbacks to copy from
    * @param to   key for the set of callbacks to copy to
@@ -184,6 +542,13 @@ public class GroundyCodeGen extends AbstractProcessor {
       }
 
       if (!exists) {
+        if (!proxyImplContentFrom.publicMethod
+            && !packageOf(proxyImplContentFrom.callbackElement).equals(packageOf(to.handler))) {
+          LOGGER.info(proxyImplContentFrom.fullTargetClassName + "#"
+              + proxyImplContentFrom.methodName + " is not visible from " + to.handler
+              + ". Reflection will be used and it can slow things down.");
+          unsupportedHandlers.add(to.handler);
+        }
         proxyImplContentsTo.add(proxyImplContentFrom);
       }
     }
@@ -196,13 +561,21 @@ public class GroundyCodeGen extends AbstractProcessor {
   }
 
   private void processCallback(Element annotationElement, ExecutableElement callbackMethod) {
-    // ignore inner classes and non public classes
+    // proxies live in the package of the handler, so it just can't be private
     Element handlerElement = callbackMethod.getEnclosingElement();
     LOGGER.info("Processing callback element: " + handlerElement);
 
-    if (!handlerElement.getModifiers().contains(Modifier.PUBLIC)) {
-      LOGGER.info(
-          handlerElement + " is not public. Reflection will be used and it can slow things down.");
+    String handlerPackage = packageOf(handlerElement);
+    if (handlerPackage.length() == 0 || !isVisibleFrom(handlerElement, handlerPackage)) {
+      LOGGER.info(handlerElement + " is private or in the default package."
+          + " Reflection will be used and it can slow things down.");
+      return;
+    }
+
+    if (callbackMethod.getModifiers().contains(Modifier.PRIVATE)) {
+      LOGGER.info(handlerElement + "#" + callbackMethod + " is private."
+          + " Reflection will be used and it can slow things down.");
+      unsupportedHandlers.add(handlerElement);
       return;
     }
 
@@ -222,6 +595,11 @@ public class GroundyCodeGen extends AbstractProcessor {
       }
 
       taskElement = ((DeclaredType) attribute.getValue()).asElement();
+      if (!isVisibleFrom(taskElement, handlerPackage)) {
+        LOGGER.info(taskElement + " is not visible from " + handlerElement
+            + ". Reflection will be used and it can slow things down.");
+        continue;
+      }
 
       // generate proxy class name
       final HandlerAndTask handlerAndTask = new HandlerAndTask(handlerElement, taskElement);
@@ -238,6 +616,7 @@ public class GroundyCodeGen extends AbstractProcessor {
       proxyImplContent.annotation = annotationElement.toString();
       proxyImplContent.paramNames = getParamNames(callbackMethod);
       proxyImplContent.methodName = callbackMethod.getSimpleName().toString();
+      proxyImplContent.publicMethod = callbackMethod.getModifiers().contains(Modifier.PUBLIC);
       proxyImplContent.callbackElement = handlerElement;
       proxyImplContent.taskElement = taskElement;
       proxyImplContent.fullTargetClassName = handlerElement.toString();
@@ -307,80 +686,102 @@ public class GroundyCodeGen extends AbstractProcessor {
         LOGGER.info("Generating source code for " + callbacksArr[0].fullTargetClassName + ":");
       }
 
+      String packageName = packageOf(handlerAndTask.handler);
       javaWriter.emitSingleLineComment("auto-generated file; don't modify");
-      javaWriter.emitPackage("com.telly.groundy.generated");
-      javaWriter.emitImports("android.os.Bundle", Annotation.class.getName(),
-          "com.telly.groundy.*");
+      javaWriter.emitPackage(packageName);
+      javaWriter.emitImports("android.os.Bundle", "com.telly.groundy.CallbackKind",
+          "com.telly.groundy.ResultProxy");
 
       String proxyClassName = handlerAndTask.generateClassName();
-      javaWriter.beginType(proxyClassName, "class", EnumSet.of(Modifier.PUBLIC), null,
+      javaWriter.beginType(proxyClassName, "class", EnumSet.of(Modifier.FINAL), null,
           "ResultProxy");
 
       javaWriter.beginMethod("void", "apply", EnumSet.of(Modifier.PUBLIC), "Object", "target",
-          "Class<? extends Annotation>", "callbackAnnotation", "Bundle", "resultData");
+          "int", "callbackKind", "Bundle", "resultData");
 
       // make sure the target and result is OK
-      String fullTargetClassName = callbacks.iterator().next().fullTargetClassName;
+      String fullTargetClassName = handlerAndTask.handler.toString();
       String targetIsValid = "!(target instanceof " + fullTargetClassName + ")";
       String resultIsValid = "resultData == null";
       javaWriter.beginControlFlow("if(" + targetIsValid + " || " + resultIsValid + ")");
       javaWriter.emitStatement("return");
       javaWriter.endControlFlow();
+      javaWriter.emitStatement(
+          fullTargetClassName + " groundyHandler = (" + fullTargetClassName + ") target");
 
-      boolean alreadySetCallbackName = false;
-
-
+      // callbacks grouped by kind, so that each one is found with a single switch
+      Map<String, List<ProxyImplContent>> callbacksByKind =
+          new TreeMap<String, List<ProxyImplContent>>();
       List<Element> originatingElements = new ArrayList<Element>();
       for (ProxyImplContent proxyImpl : callbacks) {
         originatingElements.add(proxyImpl.originatingElement);
-        if (verboseMode) {
-          LOGGER.info("Adding annotation proxy: " + proxyImpl.annotation);
-        }
-        String shouldHandleAnnotation = "callbackAnnotation == " + proxyImpl.annotation + ".class";
-        if (proxyImpl.callbackName != null) {
-          if (!alreadySetCallbackName) {
-            javaWriter.emitStatement("String callbackName = "
-                + "resultData.getString(\"" + Groundy.KEY_CALLBACK_NAME + "\")");
-            alreadySetCallbackName = true;
-          }
-          String callbackNameCheck = '\"' + proxyImpl.callbackName + "\".equals(callbackName)";
-          shouldHandleAnnotation += " && " + callbackNameCheck;
+        String kind = CALLBACK_KINDS.get(proxyImpl.annotation);
+        List<ProxyImplContent> kindCallbacks = callbacksByKind.get(kind);
+        if (kindCallbacks == null) {
+          kindCallbacks = new ArrayList<ProxyImplContent>();
+          callbacksByKind.put(kind, kindCallbacks);
         }
-        javaWriter.beginControlFlow("if (" + shouldHandleAnnotation + ")");
-
-        StringBuilder invocation = new StringBuilder();
-        String separator = "";
-        for (int i = 0; i < proxyImpl.paramNames.size(); i++) {
-          NameAndType nameAndType = proxyImpl.paramNames.get(i);
-          String paramInsertionName = "groundyCallbackParam" + i;
-
-          String valName = "groundyValue" + i;
-          String assignation = "resultData.get(\"" + nameAndType.name + "\")";
-          javaWriter.emitStatement("Object " + valName + " = " + assignation);
+        kindCallbacks.add(proxyImpl);
+      }
 
-          javaWriter.beginControlFlow("if(" + valName + " == null)");
-          javaWriter.emitStatement(valName + " = " + defaultValue(nameAndType.type));
-          javaWriter.endControlFlow();
+      javaWriter.beginControlFlow("switch (callbackKind)");
+      for (Map.Entry<String, List<ProxyImplContent>> kindEntry : callbacksByKind.entrySet()) {
+        javaWriter.beginControlFlow("case CallbackKind." + kindEntry.getKey() + ":");
+        boolean alreadySetCallbackName = false;
+        for (ProxyImplContent proxyImpl : kindEntry.getValue()) {
+          if (verboseMode) {
+            LOGGER.info("Adding annotation proxy: " + proxyImpl.annotation);
+          }
 
-          String declaration = nameAndType.type + " " + paramInsertionName;
-          String casting = " = (" + cleanCasting(nameAndType.type) + ") ";
-          javaWriter.emitStatement(declaration + casting + valName);
+          if (proxyImpl.callbackName != null) {
+            if (!alreadySetCallbackName) {
+              javaWriter.emitStatement("String callbackName = "
+                  + "resultData.getString(\"" + Groundy.KEY_CALLBACK_NAME + "\")");
+              alreadySetCallbackName = true;
+            }
+            String callbackNameCheck = '\"' + proxyImpl.callbackName + "\".equals(callbackName)";
+            javaWriter.beginControlFlow("if (" + callbackNameCheck + ")");
+          }
 
-          invocation.append(separator).append(paramInsertionName);
-          separator = ", ";
+          StringBuilder invocation = new StringBuilder();
+          String separator = "";
+          for (int i = 0; i < proxyImpl.paramNames.size(); i++) {
+            NameAndType nameAndType = proxyImpl.paramNames.get(i);
+            String paramInsertionName = "groundyCallbackParam" + i;
+
+            // primitives use the typed getters, so that values are not boxed again
+            String key = '\"' + nameAndType.name + '\"';
+            String typedGetter = TYPED_GETTERS.get(nameAndType.type);
+            String assignation = typedGetter != null
+                ? "resultData." + typedGetter + "(" + key + ")"
+                : "(" + nameAndType.type + ") resultData.get(" + key + ")";
+            javaWriter.emitStatement(
+                nameAndType.type + " " + paramInsertionName + " = " + assignation);
+
+            invocation.append(separator).append(paramInsertionName);
+            separator = ", ";
+          }
 
-          javaWriter.emitEmptyLine();
+          String invokeCallback = proxyImpl.methodName + "(" + invocation + ")";
+          javaWriter.emitStatement("groundyHandler." + invokeCallback);
+          javaWriter.emitStatement("return");
+          if (proxyImpl.callbackName != null) {
+            javaWriter.endControlFlow();
+          }
+        }
+        if (alreadySetCallbackName) {
+          javaWriter.emitStatement("return");
         }
-
-        String castTarget = "((" + fullTargetClassName + ")target).";
-        String invokeCallback = proxyImpl.methodName + "(" + invocation + ")";
-        javaWriter.emitStatement(castTarget + invokeCallback);
-
-        javaWriter.emitStatement("return");
         javaWriter.endControlFlow();
       }
+      javaWriter.endControlFlow();
+      javaWriter.endMethod();
 
+      // lets the service leave the original params out of the results nobody reads them from
+      javaWriter.beginMethod("boolean", "usesOriginalParams", EnumSet.of(Modifier.PUBLIC));
+      javaWriter.emitStatement("return " + usesParam(callbacks, Groundy.ORIGINAL_PARAMS));
       javaWriter.endMethod();
+
       javaWriter.endType();
       javaWriter.close();
 
@@ -391,51 +792,29 @@ public class GroundyCodeGen extends AbstractProcessor {
         System.out.println(fileContent);
       }
 
-      Filer filer = processingEnv.getFiler();
       Element[] elements = originatingElements.toArray(new Element[originatingElements.size()]);
-      String fullClassName = "com.telly.groundy.generated." + proxyClassName;
-      JavaFileObject sourceFile = filer.createSourceFile(fullClassName, elements);
-      Writer writer = sourceFile.openWriter();
-      writer.write(fileContent);
-      writer.flush();
-      writer.close();
+      String fullClassName = packageName + "." + proxyClassName;
+      writeSourceFile(fullClassName, fileContent, elements);
+      generatedProxies.put(fullClassName, handlerAndTask);
     } catch (IOException e) {
       e.printStackTrace();
       System.exit(-1);
     }
   }
 
-  private static String defaultValue(String parameterType) {
-    if (parameterType.equals(int.class.getName())
-        || "Integer".equals(parameterType)
-        || parameterType.equals(float.class.getName())
-        || "Float".equals(parameterType)
-        || parameterType.equals(double.class.getName())
-        || "Double".equals(parameterType)
-        || parameterType.equals(long.class.getName())
-        || "Long".equals(parameterType)
-        || parameterType.equals(byte.class.getName())
-        || "Byte".equals(parameterType)
-        || parameterType.equals(char.class.getName())
-        || "Character".equals(parameterType)
-        || parameterType.equals(short.class.getName())
-        || "Short".equals(parameterType)) {
-      return "0";
-    } else if (parameterType.equals(boolean.class.getName()) || "Boolean".equals(parameterType)) {
-      return "false";
-    }
-    return "null";
-  }
-
-  private String cleanCasting(String type) {
-    if (PRIMITIVES.containsKey(type)) {
-      return PRIMITIVES.get(type);
+  private static boolean usesParam(Set<ProxyImplContent> callbacks, String key) {
+    for (ProxyImplContent proxyImpl : callbacks) {
+      for (NameAndType nameAndType : proxyImpl.paramNames) {
+        if (nameAndType.name.equals(key)) {
+          return true;
+        }
+      }
     }
-    return type;
+    return false;
   }
 
   /**
-   * Makes sure method is public, returns void and all its parameters are annotated too.
+   * Makes sure method returns void and all its parameters are annotated too.
    */
   private static List<NameAndType> getParamNames(Element callbackMethod) {
     Element parentClass = callbackMethod.getEnclosingElement();
@@ -443,11 +822,6 @@ public class GroundyCodeGen extends AbstractProcessor {
 
     ExecutableElement method = (ExecutableElement) callbackMethod;
 
-    if (!method.getModifiers().contains(Modifier.PUBLIC)) {
-      LOGGER.info(methodFullInfo + " must be public.");
-      System.exit(-1);
-    }
-
     if (method.getReturnType().getKind() != TypeKind.VOID) {
       LOGGER.info(methodFullInfo + " must return void.");
       System.exit(-1);
@@ -506,6 +880,7 @@ public class GroundyCodeGen extends AbstractProcessor {
     String annotation;
     List<NameAndType> paramNames;
     String methodName;
+    boolean publicMethod;
     String fullTargetClassName;
     String callbackName;
     Element originatingElement;
@@ -580,22 +955,22 @@ public class GroundyCodeGen extends AbstractProcessor {
     }
 
     public String generateClassName() {
-      String genClassName = handler.getSimpleName().toString();
-      String groundyTaskName = task.toString().replaceAll("\\.", "\\$");
+      String genClassName = flatName(handler);
+      String groundyTaskName = task.toString().replace('.', '$');
       return genClassName + "$" + groundyTaskName + "$Proxy";
     }
   }
 
-  private static final Map<String, String> PRIMITIVES = new HashMap<String, String>();
+  private static final Map<String, String> TYPED_GETTERS = new HashMap<String, String>();
 
   static {
-    PRIMITIVES.put("int", "Integer");
-    PRIMITIVES.put("long", "Long");
-    PRIMITIVES.put("float", "Float");
-    PRIMITIVES.put("double", "Double");
-    PRIMITIVES.put("char", "Character");
-    PRIMITIVES.put("boolean", "Boolean");
-    PRIMITIVES.put("byte", "Byte");
-    PRIMITIVES.put("short", "Short");
+    TYPED_GETTERS.put("int", "getInt");
+    TYPED_GETTERS.put("long", "getLong");
+    TYPED_GETTERS.put("float", "getFloat");
+    TYPED_GETTERS.put("double", "getDouble");
+    TYPED_GETTERS.put("char", "getChar");
+    TYPED_GETTERS.put("boolean", "getBoolean");
+    TYPED_GETTERS.put("byte", "getByte");
+    TYPED_GETTERS.put("short", "getShort");
   }
 }
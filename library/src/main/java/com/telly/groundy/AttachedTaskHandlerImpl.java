@@ -73,8 +73,8 @@ class AttachedTaskHandlerImpl implements TaskHandler {
   public static final Creator<AttachedTaskHandlerImpl> CREATOR =
       new Creator<AttachedTaskHandlerImpl>() {
         @Override public AttachedTaskHandlerImpl createFromParcel(Parcel source) {
-          //noinspection unchecked
-          Class groundyTaskClass = (Class) source.readSerializable();
+          Class<? extends GroundyTask> groundyTaskClass =
+              ClassCache.forName(source.readString(), GroundyTask.class);
           long id = source.readLong();
 
           boolean hadReceiver = source.readByte() == 1;
@@ -87,7 +87,8 @@ class AttachedTaskHandlerImpl implements TaskHandler {
               receiver = (CallbacksReceiver) r;
             }
           }
-          Class groundyServiceClass = (Class) source.readSerializable();
+          Class<? extends GroundyService> groundyServiceClass =
+              ClassCache.forName(source.readString(), GroundyService.class);
 
           //noinspection unchecked
           return new AttachedTaskHandlerImpl(id, groundyServiceClass,
@@ -104,12 +105,12 @@ class AttachedTaskHandlerImpl implements TaskHandler {
   }
 
   @Override public void writeToParcel(Parcel dest, int flags) {
-    dest.writeSerializable(mGroundyTaskClass);
+    dest.writeString(ClassCache.nameOf(mGroundyTaskClass));
     dest.writeLong(mId);
     dest.writeByte((byte) (mCallbacksReceiver == null ? 0 : 1));
     if (mCallbacksReceiver != null) {
       dest.writeParcelable(mCallbacksReceiver, flags);
     }
-    dest.writeSerializable(mGroundyServiceClass);
+    dest.writeString(ClassCache.nameOf(mGroundyServiceClass));
   }
 }
@@ -0,0 +1,68 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.content.Context;
+import java.util.Collections;
+import java.util.List;
+
+/** Allows to manage all the tasks of a {@link GroundyBatch} at once. */
+public final class BatchHandler {
+  private final List<TaskHandler> mTaskHandlers;
+  private final Class<? extends GroundyService> mGroundyServiceClass;
+
+  BatchHandler(List<TaskHandler> taskHandlers,
+      Class<? extends GroundyService> groundyServiceClass) {
+    mTaskHandlers = Collections.unmodifiableList(taskHandlers);
+    mGroundyServiceClass = groundyServiceClass;
+  }
+
+  /** @return the handlers of each task, in the same order they were added to the batch */
+  public List<TaskHandler> getTaskHandlers() {
+    return mTaskHandlers;
+  }
+
+  /**
+   * Cancels all the tasks of the batch if possible.
+   *
+   * @param context used to communicate with the groundy service
+   * @param reason the reason to cancel the tasks
+   * @param cancelListener a listener to get the result of each task cancellation
+   */
+  public void cancel(Context context, int reason,
+      GroundyManager.SingleCancelListener cancelListener) {
+    long[] ids = new long[mTaskHandlers.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = mTaskHandlers.get(i).getTaskId();
+    }
+    GroundyManager.cancelTasksById(context, ids, reason, cancelListener, mGroundyServiceClass);
+  }
+
+  /** Removes the callback handlers of all the tasks. */
+  public void clearCallbacks() {
+    for (TaskHandler taskHandler : mTaskHandlers) {
+      taskHandler.clearCallbacks();
+    }
+  }
+}
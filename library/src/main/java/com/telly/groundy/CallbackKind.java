@@ -0,0 +1,79 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import com.telly.groundy.annotations.OnCallback;
+import com.telly.groundy.annotations.OnCancel;
+import com.telly.groundy.annotations.OnFailure;
+import com.telly.groundy.annotations.OnProgress;
+import com.telly.groundy.annotations.OnStart;
+import com.telly.groundy.annotations.OnSuccess;
+import java.lang.annotation.Annotation;
+
+/**
+ * Small int codes for the callback annotations. Callbacks are dispatched by switching on them
+ * instead of comparing annotation classes one by one.
+ */
+public final class CallbackKind {
+  public static final int UNKNOWN = -1;
+  public static final int START = 0;
+  public static final int SUCCESS = 1;
+  public static final int FAILURE = 2;
+  public static final int CANCEL = 3;
+  public static final int PROGRESS = 4;
+  public static final int CALLBACK = 5;
+
+  private static final Class<?>[] ANNOTATIONS = {
+      OnStart.class, OnSuccess.class, OnFailure.class, OnCancel.class, OnProgress.class,
+      OnCallback.class
+  };
+
+  private CallbackKind() {
+  }
+
+  /** @return the code of the callback annotation or {@link #UNKNOWN} */
+  public static int of(Class<? extends Annotation> callbackAnnotation) {
+    for (int kind = 0; kind < ANNOTATIONS.length; kind++) {
+      if (ANNOTATIONS[kind] == callbackAnnotation) {
+        return kind;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  /** @return the callback annotation of the code or null if it is not known */
+  @SuppressWarnings("unchecked")
+  public static Class<? extends Annotation> annotationOf(int kind) {
+    if (kind < 0 || kind >= ANNOTATIONS.length) {
+      return null;
+    }
+    return (Class<? extends Annotation>) ANNOTATIONS[kind];
+  }
+
+  /** @return true if no more callbacks are sent after one of this kind */
+  public static boolean isEnding(int kind) {
+    return kind == SUCCESS || kind == FAILURE || kind == CANCEL;
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Collects the events of batched receivers as they arrive, on whatever thread they arrive, and
+ * delivers all the events of a frame in a single pass on the looper. If a receiver reports
+ * progress several times in a frame, only the latest value is delivered; every other event is
+ * delivered in the order it arrived.
+ *
+ * @see Groundy#batchCallbacks()
+ */
+final class CallbacksBatcher implements Runnable {
+  static final long FRAME_MILLIS = 16;
+  // batchers hold their looper, so they are held weakly too; otherwise loopers of threads that
+  // are gone would never be collected
+  private static final Map<Looper, WeakReference<CallbacksBatcher>> BATCHERS =
+      new WeakHashMap<Looper, WeakReference<CallbacksBatcher>>();
+
+  private final Handler mHandler;
+  private List<Event> mEvents = new ArrayList<Event>();
+  // last event queued by each receiver during this frame
+  private final Map<CallbacksReceiver, Event> mLastEvents =
+      new IdentityHashMap<CallbacksReceiver, Event>();
+
+  private CallbacksBatcher(Looper looper) {
+    mHandler = new Handler(looper);
+  }
+
+  static CallbacksBatcher get(Looper looper) {
+    synchronized (BATCHERS) {
+      WeakReference<CallbacksBatcher> reference = BATCHERS.get(looper);
+      CallbacksBatcher batcher = reference == null ? null : reference.get();
+      if (batcher == null) {
+        batcher = new CallbacksBatcher(looper);
+        BATCHERS.put(looper, new WeakReference<CallbacksBatcher>(batcher));
+      }
+      return batcher;
+    }
+  }
+
+  void enqueue(CallbacksReceiver receiver, int resultCode, Bundle resultData) {
+    // done before taking the lock; it also unparcels the bundle out of the looper thread
+    boolean progress = isProgress(resultCode, resultData);
+
+    synchronized (this) {
+      Event lastEvent = mLastEvents.get(receiver);
+      if (progress && lastEvent != null && lastEvent.mProgress) {
+        lastEvent.mResultData = resultData;
+        return;
+      }
+
+      Event event = new Event(receiver, resultCode, resultData, progress);
+      mEvents.add(event);
+      mLastEvents.put(receiver, event);
+      if (mEvents.size() == 1) {
+        long now = SystemClock.uptimeMillis();
+        mHandler.postAtTime(this, now - now % FRAME_MILLIS + FRAME_MILLIS);
+      }
+    }
+  }
+
+  @Override public void run() {
+    List<Event> events;
+    synchronized (this) {
+      events = mEvents;
+      mEvents = new ArrayList<Event>();
+      mLastEvents.clear();
+    }
+
+    for (Event event : events) {
+      event.mReceiver.deliver(event.mResultCode, event.mResultData);
+    }
+  }
+
+  private static boolean isProgress(int resultCode, Bundle resultData) {
+    return resultCode == GroundyTask.RESULT_CODE_CALLBACK_ANNOTATION && resultData != null
+        && resultData.getInt(Groundy.KEY_CALLBACK_KIND, CallbackKind.UNKNOWN)
+        == CallbackKind.PROGRESS;
+  }
+
+  private static final class Event {
+    final CallbacksReceiver mReceiver;
+    final int mResultCode;
+    Bundle mResultData;
+    final boolean mProgress;
+
+    Event(CallbacksReceiver receiver, int resultCode, Bundle resultData, boolean progress) {
+      mReceiver = receiver;
+      mResultCode = resultCode;
+      mResultData = resultData;
+      mProgress = progress;
+    }
+  }
+}
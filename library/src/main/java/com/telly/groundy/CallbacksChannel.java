@@ -0,0 +1,149 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ResultReceiver;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A single receiver shared by all the tasks sent to a service from the same looper. Instead of a
+ * Binder per task, the service gets this channel once and tags every event with the id of the
+ * request it belongs to; the channel then hands the event to the receiver of that request.
+ *
+ * @see Groundy#sharedChannel()
+ */
+final class CallbacksChannel extends ResultReceiver {
+  private static final String TAG = "groundy:channel";
+  static final String KEY_REQUEST_ID = "com.telly.groundy.key.CHANNEL_REQUEST_ID";
+  // channels hold their looper, so they are held weakly too; otherwise loopers of threads that
+  // are gone would never be collected. A channel in use is kept alive by the service holding it
+  private static final Map<Class<?>, Map<Looper, WeakReference<CallbacksChannel>>> CHANNELS =
+      new HashMap<Class<?>, Map<Looper, WeakReference<CallbacksChannel>>>();
+
+  private final Map<Long, CallbacksReceiver> mReceivers =
+      new ConcurrentHashMap<Long, CallbacksReceiver>();
+
+  private CallbacksChannel(Looper looper) {
+    super(looper == null ? null : new Handler(looper));
+  }
+
+  /**
+   * @param looper looper to post the events to, or null to pass them on from the thread they
+   *               arrive on
+   * @return the channel used to send events to the specified looper from the service
+   */
+  static CallbacksChannel get(Class<? extends GroundyService> groundyClass, Looper looper) {
+    synchronized (CHANNELS) {
+      Map<Looper, WeakReference<CallbacksChannel>> serviceChannels = CHANNELS.get(groundyClass);
+      if (serviceChannels == null) {
+        serviceChannels = new WeakHashMap<Looper, WeakReference<CallbacksChannel>>();
+        CHANNELS.put(groundyClass, serviceChannels);
+      }
+      WeakReference<CallbacksChannel> reference = serviceChannels.get(looper);
+      CallbacksChannel channel = reference == null ? null : reference.get();
+      if (channel == null) {
+        channel = new CallbacksChannel(looper);
+        serviceChannels.put(looper, new WeakReference<CallbacksChannel>(channel));
+      }
+      return channel;
+    }
+  }
+
+  void register(long requestId, CallbacksReceiver receiver) {
+    mReceivers.put(requestId, receiver);
+  }
+
+  /** Forgets the receiver of a request, if the channel it was registered in is still around. */
+  static void unregister(Class<? extends GroundyService> groundyClass, Looper looper,
+      long requestId) {
+    CallbacksChannel channel = null;
+    synchronized (CHANNELS) {
+      Map<Looper, WeakReference<CallbacksChannel>> serviceChannels = CHANNELS.get(groundyClass);
+      WeakReference<CallbacksChannel> reference =
+          serviceChannels == null ? null : serviceChannels.get(looper);
+      if (reference != null) {
+        channel = reference.get();
+      }
+    }
+    if (channel != null) {
+      channel.mReceivers.remove(requestId);
+    }
+  }
+
+  @Override protected void onReceiveResult(int resultCode, Bundle resultData) {
+    if (resultData == null) {
+      return;
+    }
+    resultData.setClassLoader(CallbacksChannel.class.getClassLoader());
+    long requestId = resultData.getLong(KEY_REQUEST_ID);
+    CallbacksReceiver receiver = mReceivers.get(requestId);
+    if (receiver == null) {
+      L.d(TAG, "No receiver for request " + requestId);
+      return;
+    }
+
+    receiver.onReceiveResult(resultCode, resultData);
+    if (resultCode == GroundyTask.RESULT_CODE_CALLBACK_ANNOTATION) {
+      int callbackKind = resultData.getInt(Groundy.KEY_CALLBACK_KIND, CallbackKind.UNKNOWN);
+      if (CallbackKind.isEnding(callbackKind)) {
+        mReceivers.remove(requestId);
+      }
+    }
+  }
+
+  /**
+   * Used by the service in place of the receiver of a request that uses a channel. It tags the
+   * events with the request id and forwards them through the channel. It is never parceled, so it
+   * does not create a Binder of its own.
+   */
+  static final class Sender extends ResultReceiver {
+    private final ResultReceiver mChannel;
+    private final long mRequestId;
+
+    Sender(ResultReceiver channel, long requestId) {
+      super(null);
+      mChannel = channel;
+      mRequestId = requestId;
+    }
+
+    @Override protected void onReceiveResult(int resultCode, Bundle resultData) {
+      // the same bundle can be sent to several receivers, so the tag goes in a copy
+      Bundle tagged = resultData == null ? new Bundle() : new Bundle(resultData);
+      tagged.putLong(KEY_REQUEST_ID, mRequestId);
+      mChannel.send(resultCode, tagged);
+    }
+
+    @Override public String toString() {
+      return "Sender{requestId=" + mRequestId + '}';
+    }
+  }
+}
@@ -25,17 +25,12 @@ package com.telly.groundy;
 
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
 import android.os.ResultReceiver;
 
-import com.telly.groundy.annotations.OnCancel;
-import com.telly.groundy.annotations.OnFailure;
-import com.telly.groundy.annotations.OnSuccess;
-
 import java.io.IOException;
 import java.io.Serializable;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Modifier;
 import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Collections;
@@ -43,34 +38,92 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 class CallbacksReceiver extends ResultReceiver implements HandlersHolder {
 
   private static final String TAG = "groundy:receiver";
-  public static final Pattern INNER_PATTERN = Pattern.compile("^.+?\\$\\d$");
   private static final Map<TaskAndHandler, ResultProxy> PROXIES;
+  private static final GeneratedClasses<ProxyRegistry> GENERATED_PROXIES =
+      new GeneratedClasses<ProxyRegistry>(ProxyRegistry.GENERATED_CLASS_NAME, ProxyRegistry.class);
   public static final int ATTACH_RECEIVER_PARCEL = 9999;
   public static final String RECEIVER_PARCEL = "com.telly.groundy.RECEIVER_PARCEL";
 
   private final Class<? extends GroundyTask> groundyTaskType;
   private final Set<Object> callbackHandlers;
   private ResultReceiver mAttachedReceiver;
+  private final Looper mLooper;
+  private final CallbacksBatcher mBatcher;
+  private final Executor mExecutor;
+  private volatile Bundle mOriginalParams;
 
   static {
     PROXIES = Collections.synchronizedMap(new HashMap<TaskAndHandler, ResultProxy>());
   }
 
   CallbacksReceiver(Class<? extends GroundyTask> taskType, Object... handlers) {
-    super(new Handler());
-    callbackHandlers = new SetFromMap<Object>(new HashMap<Object, Boolean>());
+    this(taskType, new Handler(), null, null, handlers);
+  }
+
+  private CallbacksReceiver(Class<? extends GroundyTask> taskType, Handler handler,
+      CallbacksBatcher batcher, Executor executor, Object[] handlers) {
+    super(handler);
+    mLooper = handler == null ? null : handler.getLooper();
+    // handlers are changed from the caller thread but used from the executor ones
+    callbackHandlers = new SetFromMap<Object>(executor == null ? new HashMap<Object, Boolean>()
+        : new ConcurrentHashMap<Object, Boolean>());
     groundyTaskType = taskType;
+    mBatcher = batcher;
+    mExecutor = executor == null ? null : new SerialExecutor(executor);
     appendCallbackHandlers(handlers);
   }
 
+  /**
+   * @return a receiver that doesn't post each event to the looper of the current thread; events
+   *         are batched and delivered once per frame instead
+   */
+  static CallbacksReceiver batched(Class<? extends GroundyTask> taskType, Object... handlers) {
+    Looper looper = Looper.myLooper();
+    if (looper == null) {
+      throw new IllegalStateException("Batched callbacks are delivered on the looper of the "
+          + "thread setting them, but " + Thread.currentThread().getName() + " has none");
+    }
+    return new CallbacksReceiver(taskType, null, CallbacksBatcher.get(looper), null, handlers);
+  }
+
+  /**
+   * @return a receiver that delivers the events using the specified executor, one at a time and
+   *         in the order they arrive, without going through any looper
+   */
+  static CallbacksReceiver using(Executor executor, Class<? extends GroundyTask> taskType,
+      Object... handlers) {
+    return new CallbacksReceiver(taskType, null, null, executor, handlers);
+  }
+
   @Override
-  public void onReceiveResult(int resultCode, Bundle resultData) {
+  public void onReceiveResult(final int resultCode, Bundle data) {
+    // tasks in this process send the same bundle to all their receivers, and delivering it adds
+    // entries to it, so each receiver works on its own copy
+    final Bundle resultData = data == null ? null : new Bundle(data);
+    if (resultData != null) {
+      // results sent by another process can hold parcelables of the app, like LargeValue
+      resultData.setClassLoader(CallbacksReceiver.class.getClassLoader());
+    }
+    if (mBatcher != null) {
+      mBatcher.enqueue(this, resultCode, resultData);
+    } else if (mExecutor != null) {
+      mExecutor.execute(new Runnable() {
+        @Override public void run() {
+          deliver(resultCode, resultData);
+        }
+      });
+    } else {
+      deliver(resultCode, resultData);
+    }
+  }
+
+  void deliver(int resultCode, Bundle resultData) {
     if (resultCode == ATTACH_RECEIVER_PARCEL && resultData != null) {
       Parcelable parcelable = resultData.getParcelable(RECEIVER_PARCEL);
       if (parcelable instanceof ResultReceiver) {
@@ -78,16 +131,61 @@ class CallbacksReceiver extends ResultReceiver implements HandlersHolder {
         mAttachedReceiver = (ResultReceiver) parcelable;
       }
     } else if (resultCode == GroundyTask.RESULT_CODE_CALLBACK_ANNOTATION) {
-      //noinspection unchecked
-      Class<? extends Annotation> callbackAnnotation =
-          (Class<? extends Annotation>) resultData.getSerializable(Groundy.KEY_CALLBACK_ANNOTATION);
-      handleCallback(callbackAnnotation, resultData);
       if (mAttachedReceiver != null) {
+        // passed on before the task class is added, so it still travels as a name
         mAttachedReceiver.send(resultCode, resultData);
       }
+      putTaskImplementation(resultData);
+      putOriginalParams(resultData);
+      handleCallback(resultData.getInt(Groundy.KEY_CALLBACK_KIND, CallbackKind.UNKNOWN),
+          resultData);
     }
   }
 
+  /**
+   * @param originalParams the args the task was sent with by the request of this receiver, given
+   *                       to the handlers taking {@link Groundy#ORIGINAL_PARAMS}; they take
+   *                       precedence over the ones the service sends back, which belong to
+   *                       another request if this one was coalesced
+   */
+  void setOriginalParams(Bundle originalParams) {
+    mOriginalParams = originalParams;
+  }
+
+  /** @return true if any of the current handlers takes {@link Groundy#ORIGINAL_PARAMS} */
+  boolean usesOriginalParams() {
+    for (Object callbackHandler : callbackHandlers) {
+      ResultProxy methodProxy = getMethodProxy(callbackHandler);
+      if (methodProxy != null && methodProxy.usesOriginalParams()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void putOriginalParams(Bundle resultData) {
+    Bundle originalParams = mOriginalParams;
+    if (originalParams != null) {
+      resultData.putBundle(Groundy.ORIGINAL_PARAMS, originalParams);
+    }
+  }
+
+  private static void putTaskImplementation(Bundle resultData) {
+    if (resultData.get(Groundy.TASK_IMPLEMENTATION) == null) {
+      Class<? extends GroundyTask> taskImplementation =
+          ClassCache.forName(resultData.getString(Groundy.KEY_TASK), GroundyTask.class);
+      resultData.putSerializable(Groundy.TASK_IMPLEMENTATION, taskImplementation);
+    }
+  }
+
+  /**
+   * @return the looper events are posted to when they arrive, or null if they are passed on from
+   *         the thread they arrive on (batched receivers and the ones using an executor)
+   */
+  Looper getLooper() {
+    return mLooper;
+  }
+
   @Override
   public void appendCallbackHandlers(Object... handlers) {
     if (handlers != null) {
@@ -111,19 +209,15 @@ class CallbacksReceiver extends ResultReceiver implements HandlersHolder {
   }
 
   @Override
-  public void handleCallback(Class<? extends Annotation> callbackAnnotation, Bundle resultData) {
-    boolean isEndingAnnotation = callbackAnnotation == OnSuccess.class ||
-        callbackAnnotation == OnFailure.class ||
-        callbackAnnotation == OnCancel.class;
-
+  public void handleCallback(int callbackKind, Bundle resultData) {
     for (Object callbackHandler : callbackHandlers) {
       ResultProxy methodProxy = getMethodProxy(callbackHandler);
       if (methodProxy != null) {
-        methodProxy.apply(callbackHandler, callbackAnnotation, resultData);
+        methodProxy.apply(callbackHandler, callbackKind, resultData);
       }
     }
 
-    if (isEndingAnnotation) {
+    if (CallbackKind.isEnding(callbackKind)) {
       clearHandlers();
     }
   }
@@ -141,22 +235,13 @@ class CallbacksReceiver extends ResultReceiver implements HandlersHolder {
       }
     }
 
-    ResultProxy resultProxy;
-    boolean isNotPublic = !Modifier.isPublic(handlerType.getModifiers());
-    if (isInner(handlerType) || isNotPublic) {
-      if (isNotPublic) {
-        L.d(TAG, "Using reflection for "
-            + handlerType
-            + " because its not public. It's recommended to use public callbacks which enables code"
-            + "generation which makes things way faster.");
-      }
+    ResultProxy resultProxy = getProxyFromGeneratedClass(handlerType);
+    if (resultProxy == null) {
+      L.d(TAG, "Using reflection proxy for "
+          + handlerType
+          + ". Code generation, which makes things way faster, can't be used for anonymous, local"
+          + " or private classes, nor for private callback methods.");
       resultProxy = new ReflectProxy(groundyTaskType, handlerType);
-    } else {
-      resultProxy = getProxyFromGeneratedClass(handlerType);
-      if (resultProxy == null) {
-        resultProxy = new ReflectProxy(groundyTaskType, handlerType);
-        L.d(TAG, "Using reflection proxy for " + handlerType);
-      }
     }
 
     PROXIES.put(taskAndHandler, resultProxy);
@@ -164,40 +249,21 @@ class CallbacksReceiver extends ResultReceiver implements HandlersHolder {
   }
 
   private ResultProxy getProxyFromGeneratedClass(Class<?> handlerType) {
-    ResultProxy resultProxy = null;
-    Class<?> taskType = groundyTaskType;
-    while (taskType != Object.class) {
-      try {
-        String pkg = "com.telly.groundy.generated.";
-        String handlerClassName = handlerType.getSimpleName();
-        String taskName = taskType.getName().replaceAll("\\.", "\\$");
-        String fullProxyClassName = pkg + handlerClassName + "$" + taskName + "$Proxy";
-        Class<?> proxyClass = Class.forName(fullProxyClassName);
-        resultProxy = (ResultProxy) proxyClass.newInstance();
-        if (resultProxy == null) {
-          throw new NullPointerException("Could not create proxy: " + proxyClass);
-        }
-        L.d(TAG, "Using fast proxy: " + fullProxyClassName);
-      } catch (Exception e) {
-        if (e instanceof ClassNotFoundException) {
-          L.e(TAG, "Could not load generated proxy: " + e.getMessage());
-        } else {
-          e.printStackTrace();
-        }
-      }
+    ProxyRegistry proxies = GENERATED_PROXIES.forPackageOf(handlerType);
+    if (proxies == null) {
+      return null;
+    }
+    for (Class<?> taskType = groundyTaskType; taskType != Object.class;
+        taskType = taskType.getSuperclass()) {
+      ResultProxy resultProxy = proxies.getProxy(handlerType, taskType);
       if (resultProxy != null) {
+        L.d(TAG, "Using fast proxy: " + resultProxy.getClass().getName());
         return resultProxy;
       }
-      taskType = taskType.getSuperclass();
     }
     return null;
   }
 
-  private static boolean isInner(Class<?> type) {
-    Matcher matcher = INNER_PATTERN.matcher(type.getName());
-    return matcher.matches();
-  }
-
   private static final class TaskAndHandler {
     final Class<? extends GroundyTask> taskType;
     final Class<?> handlerType;
@@ -0,0 +1,106 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Task and service classes travel in intents, parcels and callback bundles as plain class names
+ * instead of serialized {@link Class} objects, which are expensive to write and to read back. This
+ * resolves those names; each one is looked up only once per process.
+ */
+final class ClassCache {
+  private static final String TAG = "ClassCache";
+
+  private static final Map<String, Class<?>> CLASSES = new ConcurrentHashMap<String, Class<?>>();
+
+  private ClassCache() {
+  }
+
+  /** @return the name to send in place of the given class, or null if there is no class */
+  static String nameOf(Class<?> type) {
+    return type == null ? null : type.getName();
+  }
+
+  /** @return the names to send in place of the given classes, or null if there are none */
+  static ArrayList<String> namesOf(List<? extends Class<?>> types) {
+    if (types == null) {
+      return null;
+    }
+    ArrayList<String> names = new ArrayList<String>(types.size());
+    for (Class<?> type : types) {
+      names.add(type.getName());
+    }
+    return names;
+  }
+
+  /**
+   * @param name the name of a class, as returned by {@link #nameOf(Class)}
+   * @param base the type the class is expected to extend
+   * @return the class, or null if there is no name or it does not name a subclass of base
+   */
+  static <T> Class<? extends T> forName(String name, Class<T> base) {
+    if (name == null) {
+      return null;
+    }
+    Class<?> type = CLASSES.get(name);
+    if (type == null) {
+      try {
+        type = Class.forName(name, false, ClassCache.class.getClassLoader());
+      } catch (ClassNotFoundException e) {
+        L.e(TAG, "Could not find class " + name, e);
+        return null;
+      }
+      CLASSES.put(name, type);
+    }
+    if (!base.isAssignableFrom(type)) {
+      L.e(TAG, type + " is not a " + base.getName());
+      return null;
+    }
+    return type.asSubclass(base);
+  }
+
+  /**
+   * @return the classes named by the given list, or null if there is no list or any of its
+   *         classes can't be found; callers can't tell which ones are missing otherwise
+   */
+  static <T> List<Class<? extends T>> forNames(List<String> names, Class<T> base) {
+    if (names == null) {
+      return null;
+    }
+    List<Class<? extends T>> types = new ArrayList<Class<? extends T>>(names.size());
+    for (String name : names) {
+      Class<? extends T> type = forName(name, base);
+      if (type == null) {
+        return null;
+      }
+      types.add(type);
+    }
+    return types;
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Identifies tasks that would do exactly the same job: same implementation and either the same
+ * custom key or equal arguments. Used by {@link GroundyService} to coalesce duplicated tasks.
+ */
+final class CoalesceKey {
+  private final Class<? extends GroundyTask> mTaskType;
+  private final String mKey;
+  private final Bundle mArgs;
+  private final int mHashCode;
+
+  /**
+   * @param taskType groundy task implementation
+   * @param key      custom key provided by the caller; if null the arguments are compared
+   * @param args     task arguments
+   */
+  CoalesceKey(Class<? extends GroundyTask> taskType, String key, Bundle args) {
+    mTaskType = taskType;
+    mKey = key;
+    mArgs = args == null ? new Bundle() : args;
+
+    int hashCode = taskType.hashCode();
+    hashCode = 31 * hashCode + (key != null ? key.hashCode() : bundleHashCode(mArgs));
+    mHashCode = hashCode;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    CoalesceKey that = (CoalesceKey) o;
+    if (mHashCode != that.mHashCode || mTaskType != that.mTaskType) {
+      return false;
+    }
+    if (mKey != null || that.mKey != null) {
+      return mKey != null && mKey.equals(that.mKey);
+    }
+    return bundlesEqual(mArgs, that.mArgs);
+  }
+
+  @Override
+  public int hashCode() {
+    return mHashCode;
+  }
+
+  @Override
+  public String toString() {
+    return "CoalesceKey{taskType=" + mTaskType + (mKey != null ? ", key=" + mKey : "") + '}';
+  }
+
+  private static boolean bundlesEqual(Bundle a, Bundle b) {
+    Set<String> keys = a.keySet();
+    if (!keys.equals(b.keySet())) {
+      return false;
+    }
+    for (String key : keys) {
+      if (!valuesEqual(a.get(key), b.get(key))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean valuesEqual(Object a, Object b) {
+    if (a instanceof Bundle && b instanceof Bundle) {
+      return bundlesEqual((Bundle) a, (Bundle) b);
+    }
+    // deepEquals takes care of nulls and arrays of any type
+    return Arrays.deepEquals(new Object[]{a}, new Object[]{b});
+  }
+
+  private static int bundleHashCode(Bundle bundle) {
+    int hashCode = 0;
+    for (String key : bundle.keySet()) {
+      // must not depend on the iteration order
+      hashCode += (key == null ? 0 : key.hashCode()) ^ valueHashCode(bundle.get(key));
+    }
+    return hashCode;
+  }
+
+  private static int valueHashCode(Object value) {
+    if (value instanceof Bundle) {
+      return bundleHashCode((Bundle) value);
+    }
+    return Arrays.deepHashCode(new Object[]{value});
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the classes the groundy compiler generates in every package, like {@link ProxyRegistry}
+ * and {@link TaskFactory} implementations. They are looked up by name in the package of the class
+ * they serve, so modules compiled separately never collide; each package is looked up only once.
+ *
+ * @param <T> the type implemented by the generated class
+ */
+final class GeneratedClasses<T> {
+  private static final String TAG = "GeneratedClasses";
+  private static final Object NONE = new Object();
+
+  private final String mSimpleName;
+  private final Class<T> mType;
+  private final Map<String, Object> mInstances = new ConcurrentHashMap<String, Object>();
+
+  /**
+   * @param simpleName name of the generated class, without its package
+   * @param type       the type it implements
+   */
+  GeneratedClasses(String simpleName, Class<T> type) {
+    mSimpleName = simpleName;
+    mType = type;
+  }
+
+  /** @return an instance of the class generated in the package of the given type, or null */
+  T forPackageOf(Class<?> type) {
+    String packageName = packageOf(type);
+    Object instance = mInstances.get(packageName);
+    if (instance == null) {
+      instance = load(packageName);
+      mInstances.put(packageName, instance);
+    }
+    return instance == NONE ? null : mType.cast(instance);
+  }
+
+  private Object load(String packageName) {
+    String className = packageName.length() == 0 ? mSimpleName : packageName + "." + mSimpleName;
+    try {
+      return Class.forName(className).newInstance();
+    } catch (ClassNotFoundException e) {
+      L.d(TAG, "No " + className + " was generated; reflection will be used for that package");
+    } catch (Exception e) {
+      L.e(TAG, "Could not load " + className, e);
+    }
+    return NONE;
+  }
+
+  private static String packageOf(Class<?> type) {
+    String name = type.getName();
+    int lastDot = name.lastIndexOf('.');
+    return lastDot < 0 ? "" : name.substring(0, lastDot);
+  }
+}
@@ -33,6 +33,9 @@ import android.os.Parcelable;
 import android.os.ResultReceiver;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public final class Groundy implements Parcelable {
   /**
@@ -80,6 +83,9 @@ public final class Groundy implements Parcelable {
   /** Progress value returned when it's not possible to determine the size of a file. **/
   public static final int NO_SIZE_AVAILABLE = Integer.MIN_VALUE;
 
+  /** Priority used by tasks that don't specify one. See {@link #priority(int)}. */
+  public static final int DEFAULT_PRIORITY = 0;
+
   /**
    * If true, the stack trace of the call for each groundy task will be send to the service.
    * It allows to know which piece of code invoked this task.*
@@ -91,18 +97,42 @@ public final class Groundy implements Parcelable {
   static final String KEY_RECEIVER = "com.telly.groundy.key.RECEIVER";
   static final String KEY_TASK = "com.telly.groundy.key.TASK";
   static final String KEY_GROUP_ID = "com.telly.groundy.key.GROUP_ID";
-  static final String KEY_CALLBACK_ANNOTATION = "com.telly.groundy.key.CALLBACK_ANNOTATION";
+  static final String KEY_PRIORITY = "com.telly.groundy.key.PRIORITY";
+  static final String KEY_COALESCE = "com.telly.groundy.key.COALESCE";
+  static final String KEY_COALESCE_KEY = "com.telly.groundy.key.COALESCE_KEY";
+  static final String KEY_BATCH = "com.telly.groundy.key.BATCH";
+  static final String KEY_BATCH_ID = "com.telly.groundy.key.BATCH_ID";
+  static final String KEY_BATCH_PARTS = "com.telly.groundy.key.BATCH_PARTS";
+  static final String KEY_START_TIME = "com.telly.groundy.key.START_TIME";
+  static final String KEY_RETRY_POLICY = "com.telly.groundy.key.RETRY_POLICY";
+  static final String KEY_TIMEOUT = "com.telly.groundy.key.TIMEOUT";
+  static final String KEY_PIPELINE = "com.telly.groundy.key.PIPELINE";
+  static final String KEY_CALLBACK_KIND = "com.telly.groundy.key.CALLBACK_KIND";
   static final String KEY_CALLBACK_NAME = "com.telly.groundy.key.CALLBACK_NAME";
+  static final String KEY_SHARED_CHANNEL = "com.telly.groundy.key.SHARED_CHANNEL";
+  static final String KEY_SKIP_ORIGINAL_PARAMS = "com.telly.groundy.key.SKIP_ORIGINAL_PARAMS";
 
   private final Class<? extends GroundyTask> mGroundyTask;
   private final long mId;
   private CallbacksReceiver mReceiver;
   private final Bundle mArgs = new Bundle();
   private int mGroupId;
+  private int mPriority = DEFAULT_PRIORITY;
+  private boolean mCoalesce;
+  private String mCoalesceKey;
+  private long mDelay;
+  private long mStartTime;
+  private RetryPolicy mRetryPolicy;
+  private long mTimeout;
+  private ArrayList<Class<? extends GroundyTask>> mPipeline;
   private boolean mAlreadyProcessed = false;
   private CallbacksManager mCallbacksManager;
   private Class<? extends GroundyService> mGroundyClass = GroundyService.class;
   private boolean mAllowNonUIThreadCallbacks = false;
+  private boolean mSharedChannel;
+  private boolean mBatchCallbacks;
+  private boolean mKeepOriginalParams;
+  private Executor mCallbackExecutor;
 
   private Groundy(Class<? extends GroundyTask> groundyTask) {
     mGroundyTask = groundyTask;
@@ -131,6 +161,23 @@ public final class Groundy implements Parcelable {
     return new Groundy(groundyTask);
   }
 
+  /**
+   * Creates a batch with the provided values. All the tasks of a batch are sent to the service
+   * using a single intent, which is much cheaper than queueing or executing them one by one.
+   *
+   * @param groundies values to add to the batch; all of them must use the same service
+   * @return a new batch (does not execute anything)
+   */
+  public static GroundyBatch batch(Groundy... groundies) {
+    GroundyBatch batch = new GroundyBatch();
+    if (groundies != null) {
+      for (Groundy groundy : groundies) {
+        batch.add(groundy);
+      }
+    }
+    return batch;
+  }
+
   /**
    * Set the arguments needed to run the task.
    *
@@ -166,12 +213,94 @@ public final class Groundy implements Parcelable {
       throw new IllegalStateException("callback method can only be called once");
     }
     checkAlreadyProcessed();
+    if (mCallbackExecutor != null) {
+      mReceiver = CallbacksReceiver.using(mCallbackExecutor, mGroundyTask, callbacks);
+      return this;
+    }
     if (!mAllowNonUIThreadCallbacks && Looper.myLooper() != Looper.getMainLooper()) {
       throw new IllegalStateException(
           "callbacks can only be set on the UI thread. If you are sure you can handle callbacks "
               + "from a non UI thread, call Groundy#allowNonUiCallbacks() method first");
     }
-    mReceiver = new CallbacksReceiver(mGroundyTask, callbacks);
+    if (mBatchCallbacks) {
+      mReceiver = CallbacksReceiver.batched(mGroundyTask, callbacks);
+    } else {
+      mReceiver = new CallbacksReceiver(mGroundyTask, callbacks);
+    }
+    return this;
+  }
+
+  /**
+   * Delivers the callbacks of this value in batches, once per frame, together with the callbacks
+   * of every other batched value of the same thread. Progress callbacks reported during a frame
+   * are collapsed into the latest one; other callbacks are delivered in the order they were sent.
+   * Useful when lots of tasks report progress at the same time. Must be called before
+   * {@link #callback(Object...)}.
+   *
+   * @return itself
+   */
+  public Groundy batchCallbacks() {
+    checkAlreadyProcessed();
+    if (mReceiver != null) {
+      throw new IllegalStateException("batchCallbacks() must be called before callback()");
+    }
+    if (mCallbackExecutor != null) {
+      throw new IllegalStateException("Callbacks delivered by an executor can't be batched");
+    }
+    mBatchCallbacks = true;
+    return this;
+  }
+
+  /**
+   * Delivers the callbacks of this value using the specified executor instead of the thread that
+   * sets them, so that heavy result processing never touches the main thread. Callbacks are
+   * delivered one at a time and in order, even if the executor has several threads; they can be
+   * set from any thread. Must be called before {@link #callback(Object...)}.
+   *
+   * @param executor executor used to run the callbacks
+   * @return itself
+   */
+  public Groundy callbackOn(Executor executor) {
+    if (executor == null) {
+      throw new IllegalArgumentException("Executor cannot be null");
+    }
+    checkAlreadyProcessed();
+    if (mReceiver != null) {
+      throw new IllegalStateException("callbackOn() must be called before callback()");
+    }
+    if (mBatchCallbacks) {
+      throw new IllegalStateException("Callbacks delivered by an executor can't be batched");
+    }
+    mCallbackExecutor = executor;
+    return this;
+  }
+
+  /**
+   * Delivers the callbacks of this value through a channel shared with every other value that
+   * uses it, targets the same service and has its callbacks on the same thread. Only one Binder
+   * is created for all of them, instead of one per value, which makes a difference when lots of
+   * tasks are sent. Events are tagged with the value they belong to and dispatched to its
+   * callbacks as usual.
+   *
+   * @return itself
+   */
+  public Groundy sharedChannel() {
+    checkAlreadyProcessed();
+    mSharedChannel = true;
+    return this;
+  }
+
+  /**
+   * Keeps the args of this value on this side instead of having the service send them back with
+   * the results. Callbacks taking {@link #ORIGINAL_PARAMS} still get them, from the args kept
+   * here, so large args cross Binder only once. Even without this, the args are only sent back
+   * if some of the callbacks takes them when the value is sent.
+   *
+   * @return itself
+   */
+  public Groundy keepOriginalParams() {
+    checkAlreadyProcessed();
+    mKeepOriginalParams = true;
     return this;
   }
 
@@ -181,6 +310,9 @@ public final class Groundy implements Parcelable {
    * different.
    * If cancelling tasks using a groupId, all tasks created with this groupId will be cancelled
    * and/or removed from the queue.
+   * <p/>
+   * When the service runs in 'lanes' mode, tasks sharing a groupId are executed sequentially in
+   * the order they were queued, while tasks of different groups run in parallel.
    *
    * @param groupId groupId for this value
    * @return itself
@@ -194,6 +326,146 @@ public final class Groundy implements Parcelable {
     return this;
   }
 
+  /**
+   * Sets the priority of this value. When several tasks are waiting to be executed, the ones with
+   * higher priority are executed first; tasks with the same priority are executed in the order
+   * they were queued. Tasks that are already running are not affected.
+   *
+   * @param priority priority for this value, {@link #DEFAULT_PRIORITY} if not set
+   * @return itself
+   */
+  public Groundy priority(int priority) {
+    checkAlreadyProcessed();
+    mPriority = priority;
+    return this;
+  }
+
+  /**
+   * Delays the execution of this value. The task does not occupy the queue nor any worker thread
+   * while waiting; it is queued or executed once the delay expires. Delayed tasks can be cancelled
+   * as any other task.
+   *
+   * @param delayMillis milliseconds to wait, counted from the moment the task is queued or
+   *                    executed
+   * @return itself
+   */
+  public Groundy delay(long delayMillis) {
+    if (delayMillis < 0) {
+      throw new IllegalArgumentException("Delay cannot be negative");
+    }
+    checkAlreadyProcessed();
+    mDelay = delayMillis;
+    mStartTime = 0;
+    return this;
+  }
+
+  /**
+   * Same as {@link #delay(long)} but the task waits until the specified time.
+   *
+   * @param timestamp wall clock time, as in {@link System#currentTimeMillis()}
+   * @return itself
+   */
+  public Groundy at(long timestamp) {
+    if (timestamp <= 0) {
+      throw new IllegalArgumentException("Timestamp must be greater than zero");
+    }
+    checkAlreadyProcessed();
+    mStartTime = timestamp;
+    mDelay = 0;
+    return this;
+  }
+
+  /**
+   * Retries failed executions of this task according to the given policy. Failures are retried
+   * inside the service and {@link com.telly.groundy.annotations.OnFailure} callbacks are only
+   * invoked once the last attempt fails. This takes precedence over the policy the task class
+   * may declare (see {@link GroundyTask#retryPolicy()}).
+   *
+   * @param retryPolicy how to retry this task
+   * @return itself
+   */
+  public Groundy retry(RetryPolicy retryPolicy) {
+    if (retryPolicy == null) {
+      throw new IllegalArgumentException("Retry policy cannot be null");
+    }
+    checkAlreadyProcessed();
+    mRetryPolicy = retryPolicy;
+    return this;
+  }
+
+  /**
+   * Adds a stage to the pipeline started by this value. Once the previous stage succeeds, the
+   * service executes the next one right away, using the previous {@link TaskResult} data as its
+   * arguments. Callbacks are still resolved against the first task of the pipeline; progress and
+   * custom callbacks are delivered for every stage, but {@link com.telly.groundy.annotations.OnSuccess}
+   * is only invoked for the last one. If a stage fails or gets cancelled, the pipeline stops and the
+   * corresponding callback is invoked. Retry policies and timeouts set on this value apply to every
+   * stage.
+   *
+   * @param groundyTask task executed after the previous stage succeeds
+   * @return itself
+   */
+  public Groundy then(Class<? extends GroundyTask> groundyTask) {
+    if (groundyTask == null) {
+      throw new IllegalStateException("GroundyTask no provided");
+    }
+    checkAlreadyProcessed();
+    if (mPipeline == null) {
+      mPipeline = new ArrayList<Class<? extends GroundyTask>>();
+    }
+    mPipeline.add(groundyTask);
+    return this;
+  }
+
+  /**
+   * Limits how long each execution of this task can take. Once it expires the task is stopped and
+   * its thread interrupted, the {@link com.telly.groundy.annotations.OnCancel} callbacks are invoked
+   * and pending tasks keep running even if the task never returns. This takes precedence over the
+   * timeout the task class may declare (see {@link GroundyTask#timeout()}).
+   *
+   * @param timeoutMillis maximum execution time
+   * @return itself
+   */
+  public Groundy timeout(long timeoutMillis) {
+    if (timeoutMillis <= 0) {
+      throw new IllegalArgumentException("Timeout must be greater than zero");
+    }
+    checkAlreadyProcessed();
+    mTimeout = timeoutMillis;
+    return this;
+  }
+
+  /**
+   * Avoids running this value if an identical one is already queued or running. Two tasks are
+   * identical if they have the same implementation and equal arguments. Instead of scheduling a
+   * duplicate, the callbacks of this value are attached to the existing task; thus, they will
+   * receive the id of that task.
+   *
+   * @return itself
+   */
+  public Groundy coalesce() {
+    checkAlreadyProcessed();
+    mCoalesce = true;
+    return this;
+  }
+
+  /**
+   * Same as {@link #coalesce()} but tasks are considered identical when they have the same
+   * implementation and the same key, regardless of their arguments.
+   *
+   * @param key used to find identical tasks
+   * @return itself
+   */
+  public Groundy coalesce(String key) {
+    if (key == null) {
+      throw new IllegalArgumentException("Coalesce key cannot be null");
+    }
+    checkAlreadyProcessed();
+    mCoalesce = true;
+    mCoalesceKey = key;
+    return this;
+  }
+
   /**
    * This allows you to use a different GroundyService implementation.
    *
@@ -259,17 +531,32 @@ public final class Groundy implements Parcelable {
    */
   public Intent asIntent(Context context, boolean async) {
     markAsProcessed();
-    return internalGetServiceIntent(context, async);
+    return internalGetServiceIntent(context, getExtras(), async);
   }
 
   private TaskHandler internalQueueOrExecute(Context context, boolean async) {
+    TaskHandler taskProxy = process();
+    Bundle extras = getExtras();
+    Intent intent = LocalHandoff.newIntent(context, mGroundyClass,
+        Collections.singletonList(extras), async);
+    if (intent == null) {
+      intent = internalGetServiceIntent(context, extras, async);
+    }
+    LocalHandoff.startService(context, intent);
+    return taskProxy;
+  }
+
+  /**
+   * Marks this value as processed and registers it in its callback manager, if any.
+   *
+   * @return a task handler for this value
+   */
+  TaskHandler process() {
     markAsProcessed();
     TaskHandler taskProxy = new TaskHandlerImpl(this);
     if (mCallbacksManager != null) {
       mCallbacksManager.register(taskProxy);
     }
-
-    context.startService(internalGetServiceIntent(context, async));
     return taskProxy;
   }
 
@@ -289,6 +576,13 @@ public final class Groundy implements Parcelable {
     return mReceiver;
   }
 
+  /** Stops routing the events of this task through its shared channel, if it uses one. */
+  void unregisterFromChannel() {
+    if (mReceiver != null && mSharedChannel) {
+      CallbacksChannel.unregister(mGroundyClass, mReceiver.getLooper(), mId);
+    }
+  }
+
   private void checkAlreadyProcessed() {
     if (mAlreadyProcessed) {
       throw new IllegalStateException("This method can only be called before queueUsing(), "
@@ -303,22 +597,60 @@ public final class Groundy implements Parcelable {
     mAlreadyProcessed = true;
   }
 
-  private Intent internalGetServiceIntent(Context context, boolean async) {
+  private Intent internalGetServiceIntent(Context context, Bundle extras, boolean async) {
+    LargeValue.setUp(context);
     Intent intent = new Intent(context, mGroundyClass);
     intent.setAction(async ? GroundyService.ACTION_EXECUTE : GroundyService.ACTION_QUEUE);
-    intent.putExtra(KEY_ARGUMENTS, mArgs);
+    intent.putExtras(extras);
+    return intent;
+  }
+
+  /** @return the extras the service needs in order to build and schedule this task */
+  Bundle getExtras() {
+    Bundle extras = new Bundle();
+    extras.putBundle(KEY_ARGUMENTS, mArgs);
 
     if (devMode) {
       StackTraceElement[] stackTrace = new Throwable().getStackTrace();
-      intent.putExtra(STACK_TRACE, stackTrace);
+      extras.putSerializable(STACK_TRACE, stackTrace);
+    }
+    if (mReceiver != null && mSharedChannel) {
+      CallbacksChannel channel = CallbacksChannel.get(mGroundyClass, mReceiver.getLooper());
+      channel.register(mId, mReceiver);
+      extras.putParcelable(KEY_RECEIVER, channel);
+      extras.putBoolean(KEY_SHARED_CHANNEL, true);
+    } else if (mReceiver != null) {
+      extras.putParcelable(KEY_RECEIVER, mReceiver);
     }
     if (mReceiver != null) {
-      intent.putExtra(KEY_RECEIVER, mReceiver);
+      mReceiver.setOriginalParams(mArgs);
     }
-    intent.putExtra(KEY_TASK, mGroundyTask);
-    intent.putExtra(TASK_ID, mId);
-    intent.putExtra(KEY_GROUP_ID, mGroupId);
-    return intent;
+    if (mKeepOriginalParams || mReceiver == null || !mReceiver.usesOriginalParams()) {
+      extras.putBoolean(KEY_SKIP_ORIGINAL_PARAMS, true);
+    }
+    extras.putString(KEY_TASK, ClassCache.nameOf(mGroundyTask));
+    extras.putLong(TASK_ID, mId);
+    extras.putInt(KEY_GROUP_ID, mGroupId);
+    extras.putInt(KEY_PRIORITY, mPriority);
+    if (mCoalesce) {
+      extras.putBoolean(KEY_COALESCE, true);
+      extras.putString(KEY_COALESCE_KEY, mCoalesceKey);
+    }
+    if (mStartTime > 0) {
+      extras.putLong(KEY_START_TIME, mStartTime);
+    } else if (mDelay > 0) {
+      extras.putLong(KEY_START_TIME, System.currentTimeMillis() + mDelay);
+    }
+    if (mRetryPolicy != null) {
+      extras.putBundle(KEY_RETRY_POLICY, mRetryPolicy.toBundle());
+    }
+    if (mTimeout > 0) {
+      extras.putLong(KEY_TIMEOUT, mTimeout);
+    }
+    if (mPipeline != null) {
+      extras.putStringArrayList(KEY_PIPELINE, ClassCache.namesOf(mPipeline));
+    }
+    return extras;
   }
 
   @Override
@@ -350,13 +682,15 @@ public final class Groundy implements Parcelable {
         ", resultReceiver=" + mReceiver +
         ", extras=" + mArgs +
         ", groupId=" + mGroupId +
+        ", priority=" + mPriority +
         '}';
   }
 
   @SuppressWarnings("UnusedDeclaration")
   public static final Creator<Groundy> CREATOR = new Creator<Groundy>() {
     @Override public Groundy createFromParcel(Parcel source) {
-      Class groundyTask = (Class) source.readSerializable();
+      Class<? extends GroundyTask> groundyTask =
+          ClassCache.forName(source.readString(), GroundyTask.class);
       long id = source.readLong();
       boolean hadReceiver = source.readByte() == 1;
 
@@ -377,9 +711,27 @@ public final class Groundy implements Parcelable {
       groundy.mArgs.putAll(source.readBundle());
       groundy.mGroupId = source.readInt();
       groundy.mAlreadyProcessed = source.readByte() == 1;
-      //noinspection unchecked
-      groundy.mGroundyClass = (Class) source.readSerializable();
+      groundy.mGroundyClass = ClassCache.forName(source.readString(), GroundyService.class);
       groundy.mAllowNonUIThreadCallbacks = source.readByte() == 1;
+      groundy.mPriority = source.readInt();
+      groundy.mCoalesce = source.readByte() == 1;
+      groundy.mCoalesceKey = source.readString();
+      groundy.mDelay = source.readLong();
+      groundy.mStartTime = source.readLong();
+      groundy.mRetryPolicy = RetryPolicy.fromBundle(source.readBundle());
+      groundy.mTimeout = source.readLong();
+      if (source.readByte() == 1) {
+        List<Class<? extends GroundyTask>> pipeline =
+            ClassCache.forNames(source.createStringArrayList(), GroundyTask.class);
+        if (pipeline == null) {
+          // running only some of the stages would feed them results they don't expect
+          throw new IllegalStateException("Could not find the stages of the pipeline");
+        }
+        groundy.mPipeline = new ArrayList<Class<? extends GroundyTask>>(pipeline);
+      }
+      groundy.mSharedChannel = source.readByte() == 1;
+      groundy.mBatchCallbacks = source.readByte() == 1;
+      groundy.mKeepOriginalParams = source.readByte() == 1;
       return groundy;
     }
 
@@ -393,7 +745,7 @@ public final class Groundy implements Parcelable {
   }
 
   @Override public void writeToParcel(Parcel dest, int flags) {
-    dest.writeSerializable(mGroundyTask);
+    dest.writeString(ClassCache.nameOf(mGroundyTask));
     dest.writeLong(mId);
     dest.writeByte((byte) (mReceiver == null ? 0 : 1));
     if (mReceiver != null) {
@@ -402,8 +754,22 @@ public final class Groundy implements Parcelable {
     dest.writeBundle(mArgs);
     dest.writeInt(mGroupId);
     dest.writeByte((byte) (mAlreadyProcessed ? 1 : 0));
-    dest.writeSerializable(mGroundyClass);
+    dest.writeString(ClassCache.nameOf(mGroundyClass));
     dest.writeByte((byte) (mAllowNonUIThreadCallbacks ? 1 : 0));
+    dest.writeInt(mPriority);
+    dest.writeByte((byte) (mCoalesce ? 1 : 0));
+    dest.writeString(mCoalesceKey);
+    dest.writeLong(mDelay);
+    dest.writeLong(mStartTime);
+    dest.writeBundle(mRetryPolicy == null ? null : mRetryPolicy.toBundle());
+    dest.writeLong(mTimeout);
+    dest.writeByte((byte) (mPipeline == null ? 0 : 1));
+    if (mPipeline != null) {
+      dest.writeStringList(ClassCache.namesOf(mPipeline));
+    }
+    dest.writeByte((byte) (mSharedChannel ? 1 : 0));
+    dest.writeByte((byte) (mBatchCallbacks ? 1 : 0));
+    dest.writeByte((byte) (mKeepOriginalParams ? 1 : 0));
   }
 
   /**
@@ -613,7 +979,8 @@ public final class Groundy implements Parcelable {
 
   /**
    * Inserts a byte array value into the mapping of this Bundle, replacing any existing value for
-   * the given key.  Either key or value may be null.
+   * the given key.  Either key or value may be null. Arrays that can be larger than a few hundred
+   * KB must be sent using {@link #arg(String, LargeValue)} instead.
    *
    * @param key a String, or null
    * @param value a byte array object, or null
@@ -623,6 +990,23 @@ public final class Groundy implements Parcelable {
     return this;
   }
 
+  /**
+   * Inserts a large value, like a big byte array, without copying it into the intent sent to the
+   * service. If the service runs in this process the task gets this same instance; otherwise the
+   * bytes are written to a file once and the task maps it when it reads them. Either key or value
+   * may be null.
+   *
+   * @param key a String, or null
+   * @param value a large value, or null
+   */
+  public Groundy arg(String key, LargeValue value) {
+    if (value != null) {
+      value.sendAsFileName();
+    }
+    mArgs.putParcelable(key, value);
+    return this;
+  }
+
   /**
    * Inserts a short array value into the mapping of this Bundle, replacing any existing value for
    * the given key.  Either key or value may be null.
@@ -0,0 +1,168 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Parcel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several {@link Groundy} values that are sent to the service at once. Use {@link
+ * Groundy#batch(Groundy...)} to create one. Tasks are scheduled as if they had been queued or
+ * executed one by one, in the order they were added, but it only takes one intent to do so.
+ * Batches too big for a single intent are split in several, which the service puts back together
+ * before scheduling any of their tasks.
+ */
+public final class GroundyBatch {
+  // intents share the Binder transaction buffer of the process, which is about 1MB
+  private static final int MAX_INTENT_SIZE = 256 * 1024;
+
+  private final List<Groundy> mGroundies = new ArrayList<Groundy>();
+  private boolean mAlreadyProcessed;
+
+  GroundyBatch() {
+  }
+
+  /**
+   * @param groundy value to add to this batch. It must be configured and cannot be queued or
+   *                executed on its own.
+   * @return itself
+   */
+  public GroundyBatch add(Groundy groundy) {
+    if (groundy == null) {
+      throw new IllegalArgumentException("Cannot add a null value to a batch");
+    }
+    if (mAlreadyProcessed) {
+      throw new IllegalStateException("Batch already queued or executed");
+    }
+    mGroundies.add(groundy);
+    return this;
+  }
+
+  /**
+   * Queues all the tasks of this batch. See {@link Groundy#queueUsing(Context)}.
+   *
+   * @param context used to start the Groundy service
+   * @return a {@link BatchHandler} that gives access to the handler of each task
+   */
+  public BatchHandler queueUsing(Context context) {
+    boolean async = false;
+    return internalQueueOrExecute(context, async);
+  }
+
+  /**
+   * Executes all the tasks of this batch right away. See {@link Groundy#executeUsing(Context)}.
+   *
+   * @param context used to start the Groundy service
+   * @return a {@link BatchHandler} that gives access to the handler of each task
+   */
+  public BatchHandler executeUsing(Context context) {
+    boolean async = true;
+    return internalQueueOrExecute(context, async);
+  }
+
+  private BatchHandler internalQueueOrExecute(Context context, boolean async) {
+    if (mAlreadyProcessed) {
+      throw new IllegalStateException("Batch already queued or executed");
+    }
+    if (mGroundies.isEmpty()) {
+      throw new IllegalStateException("Cannot queue or execute an empty batch");
+    }
+
+    Class<? extends GroundyService> groundyServiceClass =
+        mGroundies.get(0).getGroundyServiceClass();
+    for (Groundy groundy : mGroundies) {
+      if (groundy.getGroundyServiceClass() != groundyServiceClass) {
+        throw new IllegalStateException("All tasks of a batch must use the same service");
+      }
+    }
+    mAlreadyProcessed = true;
+
+    List<TaskHandler> taskHandlers = new ArrayList<TaskHandler>(mGroundies.size());
+    ArrayList<Bundle> batch = new ArrayList<Bundle>(mGroundies.size());
+    for (Groundy groundy : mGroundies) {
+      taskHandlers.add(groundy.process());
+      batch.add(groundy.getExtras());
+    }
+
+    Intent intent = LocalHandoff.newIntent(context, groundyServiceClass, batch, async);
+    if (intent != null) {
+      LocalHandoff.startService(context, intent);
+      return new BatchHandler(taskHandlers, groundyServiceClass);
+    }
+
+    LargeValue.setUp(context);
+    List<ArrayList<Bundle>> parts = split(batch);
+    for (ArrayList<Bundle> part : parts) {
+      intent = new Intent(context, groundyServiceClass);
+      intent.setAction(
+          async ? GroundyService.ACTION_EXECUTE_BATCH : GroundyService.ACTION_QUEUE_BATCH);
+      intent.putParcelableArrayListExtra(Groundy.KEY_BATCH, part);
+      if (parts.size() > 1) {
+        // ids of tasks are unique, so the one of the first task identifies the batch
+        intent.putExtra(Groundy.KEY_BATCH_ID, mGroundies.get(0).getId());
+        intent.putExtra(Groundy.KEY_BATCH_PARTS, parts.size());
+      }
+      LocalHandoff.startService(context, intent);
+    }
+    return new BatchHandler(taskHandlers, groundyServiceClass);
+  }
+
+  /** @return the tasks of the batch, split in parts small enough to be sent in an intent each */
+  private List<ArrayList<Bundle>> split(ArrayList<Bundle> batch) {
+    List<ArrayList<Bundle>> parts = new ArrayList<ArrayList<Bundle>>();
+    ArrayList<Bundle> part = new ArrayList<Bundle>();
+    int partSize = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      Bundle taskExtras = batch.get(i);
+      int size = sizeOf(taskExtras);
+      if (size > MAX_INTENT_SIZE) {
+        throw new IllegalArgumentException("Task " + mGroundies.get(i) + " takes " + size
+            + " bytes, too many to be sent to the service; big args must be sent as LargeValue");
+      }
+      if (partSize + size > MAX_INTENT_SIZE && !part.isEmpty()) {
+        parts.add(part);
+        part = new ArrayList<Bundle>();
+        partSize = 0;
+      }
+      part.add(taskExtras);
+      partSize += size;
+    }
+    parts.add(part);
+    return parts;
+  }
+
+  private static int sizeOf(Bundle taskExtras) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeBundle(taskExtras);
+      return parcel.dataSize();
+    } finally {
+      parcel.recycle();
+    }
+  }
+}
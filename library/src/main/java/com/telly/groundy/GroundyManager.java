@@ -113,6 +113,34 @@ public final class GroundyManager {
     }.start();
   }
 
+  /**
+   * Cancels the specified tasks w/ the specified reason using a single connection to the service.
+   *
+   * @param context used to interact with the service
+   * @param ids the values to cancel
+   * @param cancelListener callback for cancel result; called once per value
+   */
+  public static void cancelTasksById(Context context, final long[] ids, final int reason,
+      final SingleCancelListener cancelListener,
+      Class<? extends GroundyService> groundyServiceClass) {
+    for (long id : ids) {
+      if (id <= 0) {
+        throw new IllegalStateException("id must be greater than zero");
+      }
+    }
+    new GroundyServiceConnection(context, groundyServiceClass) {
+      @Override
+      protected void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
+        for (long id : ids) {
+          int result = binder.cancelTaskById(id, reason);
+          if (cancelListener != null) {
+            cancelListener.onCancelResult(id, result);
+          }
+        }
+      }
+    }.start();
+  }
+
   /**
    * Cancels all tasks of the specified group w/ the specified reason.
    *
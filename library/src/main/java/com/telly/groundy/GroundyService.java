@@ -30,11 +30,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
 import android.os.Binder;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.ResultReceiver;
 
 import com.telly.groundy.annotations.OnCancel;
@@ -42,19 +38,27 @@ import com.telly.groundy.annotations.OnFailure;
 import com.telly.groundy.annotations.OnStart;
 import com.telly.groundy.annotations.OnSuccess;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * This service executes tasks dispatched to Groundy. By default, it creates a new {@link Thread}
- * per task and executes it sequentially. It can also process tasks in parallel but you most
+ * This service executes tasks dispatched to Groundy. By default, it executes tasks sequentially
+ * in a worker thread; queued tasks are picked by priority (see {@link Groundy#priority(int)}) and
+ * then by the order they were received. It can also process tasks in parallel but you most
  * explicitly declare your service using this meta-data tag:
  * <p/>
  * <pre> {@code
@@ -63,11 +67,56 @@ import java.util.concurrent.atomic.AtomicInteger;
  * &lt;/service&gt;
  * }
  * </pre>
+ * <p/>
+ * When in 'async' mode tasks are executed by a bounded pool of worker threads. Threads are reused
+ * and die after being idle for a while. The pool can be tuned with these meta-data tags:
+ * <p/>
+ * <pre> {@code
+ * &lt;meta-data android:name="groundy:max_threads" android:value="4" /&gt;
+ * &lt;meta-data android:name="groundy:keep_alive" android:value="10000" /&gt;
+ * }
+ * </pre>
+ * <p/>
+ * There is also a 'lanes' mode, which uses the same pool but executes tasks that share a group id
+ * (see {@link Groundy#group(int)}) one after the other, in the order they were received. Tasks of
+ * different groups are executed in parallel. Tasks without a group behave as in 'async' mode when
+ * executed and are queued as usual otherwise.
+ * <p/>
+ * Tasks can also be delayed (see {@link Groundy#delay(long)} and {@link Groundy#at(long)}). They
+ * wait in a timer wheel without using any worker thread and are queued or executed once due.
+ * Failed tasks with a {@link RetryPolicy} are rescheduled the same way, so backoff delays don't
+ * hold any worker thread either. In 'lanes' mode a task waiting to be retried does not block its
+ * lane.
+ * <p/>
+ * Tasks with a timeout (see {@link Groundy#timeout(long)}) are watched: once it expires the task is
+ * stopped with the {@link GroundyTask#TIMEOUT} reason, its thread is interrupted and the thread is
+ * replaced, so the queue keeps moving even if the task never returns.
+ * <p/>
+ * Pipelines (see {@link Groundy#then(Class)}) run entirely inside the service: once a stage
+ * succeeds, the next one is queued or executed using the previous result as its arguments.
+ * <p/>
+ * Services can keep a journal of their tasks, which is more robust than
+ * force_queue_completion: it survives the app being force stopped or the device rebooting, and
+ * keeps the order tasks were received in. Tasks that were not finished are executed again the next
+ * time the service is started, without callbacks; binding to it (e.g. through
+ * {@link GroundyManager}) doesn't replay them. It works in any mode:
+ * <p/>
+ * <pre> {@code
+ * &lt;meta-data android:name="groundy:journal" android:value="true" /&gt;
+ * }
+ * </pre>
+ * <p/>
+ * When the service runs in the process that queues or executes the tasks, they are handed to it
+ * in memory instead of being marshalled in the intent, and callbacks don't go through Binder.
+ * That is not done when force_queue_completion is enabled without a journal, since redelivered
+ * intents would not find their tasks after the process dies.
  */
 public class GroundyService extends Service {
 
   static final String ACTION_QUEUE = "com.telly.groundy.action.QUEUE";
   static final String ACTION_EXECUTE = "com.telly.groundy.action.EXECUTE";
+  static final String ACTION_QUEUE_BATCH = "com.telly.groundy.action.QUEUE_BATCH";
+  static final String ACTION_EXECUTE_BATCH = "com.telly.groundy.action.EXECUTE_BATCH";
 
   private static final String TAG = GroundyService.class.getSimpleName();
 
@@ -89,44 +138,115 @@ public class GroundyService extends Service {
    */
   public static final int NOT_EXECUTED = 2;
 
-  private static enum GroundyMode {QUEUE, ASYNC}
+  private static enum GroundyMode {QUEUE, ASYNC, LANES}
 
   public static final String KEY_MODE = "groundy:mode";
   public static final String KEY_FORCE_QUEUE_COMPLETION = "groundy:force_queue_completion";
+  /** Maximum amount of threads used to execute tasks when in 'async' mode. */
+  public static final String KEY_MAX_THREADS = "groundy:max_threads";
+  /** Milliseconds an idle worker thread waits for new tasks before dying. */
+  public static final String KEY_KEEP_ALIVE = "groundy:keep_alive";
+  /** Whether to keep a journal of the tasks so that unfinished ones survive process death. */
+  public static final String KEY_JOURNAL = "groundy:journal";
+
+  private static final int DEFAULT_MAX_THREADS = Runtime.getRuntime().availableProcessors() * 2 + 1;
+  private static final int DEFAULT_KEEP_ALIVE = 10000;
+  private static final int INITIAL_QUEUE_CAPACITY = 11;
+  private static final long TIMER_TICK = 100;
+  private static final int TIMER_TICKS_PER_WHEEL = 512;
+  // time given to the rest of the parts of a batch to arrive once its first part is received
+  private static final long BATCH_PARTS_TIMEOUT = 60 * 1000;
+  // start ids given by the system are always positive
+  private static final int REPLAYED_START_ID = 0;
+
+  /** Higher priorities go first; tasks with the same priority are executed in arrival order. */
+  private static final Comparator<Runnable> RUNNER_ORDER = new Comparator<Runnable>() {
+    @Override
+    public int compare(Runnable lhs, Runnable rhs) {
+      return ((TaskRunner) lhs).compareTo((TaskRunner) rhs);
+    }
+  };
   private final GroundyServiceBinder mBinder = new GroundyServiceBinder();
 
-  private Looper mGroundyLooper;
-  private GroundyHandler mGroundyHandler;
-  private final List<Looper> mAsyncLoopers = new ArrayList<Looper>();
+  private GroundyWorkerPool mQueuePool;
+  private GroundyWorkerPool mAsyncPool;
+  private final Map<Integer, Lane> mLanes = new HashMap<Integer, Lane>();
+  // parts of the batches that did not fit in one intent, guarded by itself
+  private final Map<Long, PartialBatch> mPartialBatches = new HashMap<Long, PartialBatch>();
+  // lanes kept busy for a task that continues in them (a retry or the next pipeline stage)
+  private final Map<GroundyTask, Lane> mHeldLanes = new HashMap<GroundyTask, Lane>();
+
+  // in-flight tasks that can be shared by identical requests (see Groundy#coalesce())
+  private final Map<CoalesceKey, GroundyTask> mCoalescedTasks =
+      new HashMap<CoalesceKey, GroundyTask>();
+  private final Map<Long, CoalescedAlias> mCoalescedAliases = new HashMap<Long, CoalescedAlias>();
+  private final AtomicLong mSubmissionCount = new AtomicLong();
+  private final TimerWheel mTimerWheel =
+      new TimerWheel("GroundyTimer", TIMER_TICK, TIMER_TICKS_PER_WHEEL);
 
   private GroundyMode mMode = GroundyMode.QUEUE;
+  private int mMaxThreads = DEFAULT_MAX_THREADS;
+  private int mKeepAlive = DEFAULT_KEEP_ALIVE;
   private int mStartBehavior = START_NOT_STICKY;
+  private boolean mUseJournal;
+  private TaskJournal mJournal;
+  // unfinished tasks loaded from the journal, replayed once the service is started
+  private List<TaskJournal.Entry> mJournalEntries;
   private final WakeLockHelper mWakeLockHelper;
   private AtomicInteger mLastStartId = new AtomicInteger();
 
   // this help us keep track of the tasks that are scheduled to be executed
-  private final SortedMap<Long, GroundyTask> mTasksSet;
+  private final TaskRegistry mTasks = new TaskRegistry();
 
   public GroundyService() {
     mWakeLockHelper = new WakeLockHelper(this);
-    mTasksSet = Collections.synchronizedSortedMap(new TreeMap<Long, GroundyTask>());
   }
 
   @Override
   public void onCreate() {
     super.onCreate();
     updateModeFromMetadata();
+    LargeValue.setUp(this);
+
+    mQueuePool = new GroundyWorkerPool("SyncGroundyService", 1, mKeepAlive, newRunnerQueue());
+    if (mMode != GroundyMode.QUEUE) {
+      mAsyncPool = new GroundyWorkerPool("AsyncGroundyService", mMaxThreads, mKeepAlive,
+          newRunnerQueue());
+    }
 
-    HandlerThread thread = new HandlerThread("SyncGroundyService");
-    thread.start();
+    if (mUseJournal) {
+      File journalFile = new File(getFilesDir(), "groundy_" + getClass().getName() + ".journal");
+      mJournal = new TaskJournal(journalFile, getClassLoader());
+      mJournalEntries = mJournal.open();
+    }
+  }
 
-    mGroundyLooper = thread.getLooper();
-    mGroundyHandler = new GroundyHandler(mGroundyLooper);
+  /**
+   * Schedules again the tasks the journal says were not finished. It is done when the service is
+   * started rather than created, since a service that is only bound would be destroyed right
+   * after, stopping them all.
+   */
+  private void replayJournal() {
+    List<TaskJournal.Entry> entries = mJournalEntries;
+    if (entries == null) {
+      return;
+    }
+    mJournalEntries = null;
+    for (TaskJournal.Entry entry : entries) {
+      boolean async = entry.mAsync && mMode != GroundyMode.QUEUE;
+      Intent intent = new Intent(this, getClass())
+          .setAction(async ? ACTION_EXECUTE : ACTION_QUEUE)
+          .putExtras(entry.mExtras);
+      int flags = entry.mStarted ? START_FLAG_REDELIVERY : 0;
+      L.d(TAG, "Replaying task " + entry.mId + " from the journal");
+      scheduleTask(intent, REPLAYED_START_ID, flags, async);
+    }
   }
 
   @Override
   public int onStartCommand(Intent intent, int flags, int startId) {
     mLastStartId.set(startId);
+    replayJournal();
 
     if (intent == null) {
       // we should not have received a null intent... kill the service just in case
@@ -135,21 +255,22 @@ public class GroundyService extends Service {
     }
 
     final String action = intent.getAction();
-    if (ACTION_EXECUTE.equals(action)) {
+    if (ACTION_EXECUTE.equals(action) || ACTION_EXECUTE_BATCH.equals(action)) {
       if (mMode == GroundyMode.QUEUE) {
         // make sure we don't allow to asynchronously execute tasks while we are not in queue mode
         throw new UnsupportedOperationException(
             "Current mode is 'queue'. You cannot use .executeUsing() while"
                 + " in this mode. You must enable 'async' mode by adding metadata to the manifest.");
       }
-      HandlerThread thread = new HandlerThread("AsyncGroundyService");
-      thread.start();
-      Looper looper = thread.getLooper();
-      GroundyHandler groundyHandler = new GroundyHandler(looper);
-      mAsyncLoopers.add(looper);
-      scheduleTask(intent, startId, groundyHandler, flags);
+      if (ACTION_EXECUTE_BATCH.equals(action)) {
+        scheduleBatch(intent, startId, flags, true);
+      } else {
+        scheduleTask(intent, startId, flags, true);
+      }
     } else if (ACTION_QUEUE.equals(action)) {
-      scheduleTask(intent, startId, mGroundyHandler, flags);
+      scheduleTask(intent, startId, flags, false);
+    } else if (ACTION_QUEUE_BATCH.equals(action)) {
+      scheduleBatch(intent, startId, flags, false);
     } else {
       L.e(TAG, "Wrong intent received: " + intent);
     }
@@ -160,8 +281,14 @@ public class GroundyService extends Service {
   @Override
   public void onDestroy() {
     super.onDestroy();
-    mGroundyLooper.quit();
+    mQueuePool.shutdown();
+    if (mAsyncPool != null) {
+      mAsyncPool.shutdown();
+    }
     internalQuit(GroundyTask.SERVICE_DESTROYED);
+    if (mJournal != null) {
+      mJournal.close();
+    }
   }
 
   @Override
@@ -169,27 +296,352 @@ public class GroundyService extends Service {
     return mBinder;
   }
 
-  private void scheduleTask(Intent intent, int startId, GroundyHandler groundyHandler, int flags) {
-    long taskId = intent.getLongExtra(Groundy.TASK_ID, 0);
+  private void scheduleTask(Intent intent, int startId, int flags, boolean async) {
+    scheduleTasks(Collections.singletonList(intent), startId, flags, async);
+  }
+
+  private void scheduleBatch(Intent intent, int startId, int flags, boolean async) {
+    List<Bundle> batch = LocalHandoff.claim(intent);
+    if (batch == null) {
+      batch = intent.getParcelableArrayListExtra(Groundy.KEY_BATCH);
+    }
+    if (batch == null) {
+      L.e(TAG, "Batch intent without tasks received: " + intent);
+      return;
+    }
+    long batchId = intent.getLongExtra(Groundy.KEY_BATCH_ID, 0);
+    if (batchId != 0) {
+      batch = assembleBatch(batchId, intent.getIntExtra(Groundy.KEY_BATCH_PARTS, 1), batch,
+          startId, async);
+      if (batch == null) {
+        // the rest of its parts are on their way
+        return;
+      }
+    }
+
+    scheduleTasks(batchIntents(batch, async), startId, flags, async);
+  }
+
+  /** @return an intent for each task of the batch, as if it had been sent on its own */
+  private List<Intent> batchIntents(List<Bundle> batch, boolean async) {
+    String action = async ? ACTION_EXECUTE : ACTION_QUEUE;
+    List<Intent> intents = new ArrayList<Intent>(batch.size());
+    for (Bundle taskExtras : batch) {
+      taskExtras.setClassLoader(getClassLoader());
+      intents.add(new Intent(this, getClass()).setAction(action).putExtras(taskExtras));
+    }
+    return intents;
+  }
+
+  /**
+   * Collects the parts of a batch that was too big for a single intent, so that its tasks are
+   * scheduled all at once, like the ones of any other batch.
+   *
+   * @return all the tasks of the batch, or null if some parts have not arrived yet
+   */
+  private List<Bundle> assembleBatch(long batchId, int parts, List<Bundle> part, int startId,
+      boolean async) {
+    synchronized (mPartialBatches) {
+      PartialBatch partialBatch = mPartialBatches.get(batchId);
+      if (partialBatch == null) {
+        final PartialBatch newBatch = new PartialBatch(batchId, parts, async);
+        newBatch.mExpiry = mTimerWheel.schedule(new Runnable() {
+          @Override
+          public void run() {
+            expireBatch(newBatch);
+          }
+        }, BATCH_PARTS_TIMEOUT);
+        partialBatch = newBatch;
+        mPartialBatches.put(batchId, partialBatch);
+      }
+      partialBatch.mTasks.addAll(part);
+      partialBatch.mStartId = startId;
+      if (++partialBatch.mReceivedParts < parts) {
+        return null;
+      }
+      mPartialBatches.remove(batchId);
+      partialBatch.mExpiry.cancel();
+      return partialBatch.mTasks;
+    }
+  }
+
+  /**
+   * Fails the tasks of a batch whose parts did not all arrive in time (e.g. sending one of them
+   * failed), so that neither they nor the service wait for them forever.
+   */
+  private void expireBatch(PartialBatch partialBatch) {
+    synchronized (mPartialBatches) {
+      if (mPartialBatches.get(partialBatch.mBatchId) != partialBatch) {
+        return;
+      }
+      mPartialBatches.remove(partialBatch.mBatchId);
+    }
+    L.e(TAG, "Batch " + partialBatch.mBatchId + " expired; only " + partialBatch.mReceivedParts
+        + " of its " + partialBatch.mParts + " parts arrived");
+    for (Intent intent : batchIntents(partialBatch.mTasks, partialBatch.mAsync)) {
+      GroundyTask groundyTask = buildBatchTask(intent, partialBatch);
+      if (groundyTask != null) {
+        failUnscheduled(groundyTask, "The rest of the batch never arrived");
+      }
+    }
+    stopIfDone(partialBatch.mStartId);
+  }
+
+  /** Cancels the tasks of the batches that were still waiting for some of their parts. */
+  private void discardPartialBatches(int quittingReason) {
+    List<PartialBatch> partialBatches;
+    synchronized (mPartialBatches) {
+      partialBatches = new ArrayList<PartialBatch>(mPartialBatches.values());
+      mPartialBatches.clear();
+    }
+    for (PartialBatch partialBatch : partialBatches) {
+      partialBatch.mExpiry.cancel();
+      for (Intent intent : batchIntents(partialBatch.mTasks, partialBatch.mAsync)) {
+        GroundyTask groundyTask = buildBatchTask(intent, partialBatch);
+        if (groundyTask != null) {
+          groundyTask.stopTask(quittingReason);
+          sendCancelled(groundyTask);
+          // they were never journaled, so they can't be replayed either
+          recordFinished(groundyTask);
+        }
+      }
+    }
+  }
+
+  private GroundyTask buildBatchTask(Intent intent, PartialBatch partialBatch) {
+    intent.setExtrasClassLoader(getClassLoader());
+    int groupId = intent.getIntExtra(Groundy.KEY_GROUP_ID, DEFAULT_GROUP_ID);
+    return buildGroundyTask(intent, groupId, partialBatch.mStartId, false);
+  }
+
+  private void scheduleTasks(List<Intent> intents, int startId, int flags, boolean async) {
+    List<GroundyTask> groundyTasks = new ArrayList<GroundyTask>(intents.size());
+    List<Bundle> journalExtras = new ArrayList<Bundle>(intents.size());
+    for (Intent intent : intents) {
+      // args can hold parcelables of the app, like LargeValue
+      intent.setExtrasClassLoader(getClassLoader());
+      if (mTasks.contains(intent.getLongExtra(Groundy.TASK_ID, 0))) {
+        // it was already replayed from the journal
+        continue;
+      }
+      GroundyTask groundyTask = prepareTask(intent, startId, flags);
+      if (groundyTask != null) {
+        groundyTasks.add(groundyTask);
+        journalExtras.add(intent.getExtras());
+      }
+    }
+
+    // recorded before the tasks can be found, so that a cancel is never recorded before them
+    if (mJournal != null && startId != REPLAYED_START_ID) {
+      for (int i = 0; i < groundyTasks.size(); i++) {
+        Bundle extras = journalExtras.get(i);
+        // callbacks can't survive the process anyway
+        extras.remove(Groundy.KEY_RECEIVER);
+        mJournal.received(groundyTasks.get(i).getId(), extras, async);
+      }
+    }
+
+    // all tasks are registered at once, so that a batch is never seen half scheduled
+    mTasks.putAll(groundyTasks);
+
+    for (GroundyTask groundyTask : groundyTasks) {
+      dispatchTask(groundyTask, async);
+    }
+  }
+
+  /** @return the task to schedule or null if there is nothing to schedule for this intent */
+  private GroundyTask prepareTask(Intent intent, int startId, int flags) {
+    final long taskId = intent.getLongExtra(Groundy.TASK_ID, 0);
     if (taskId == 0) {
       throw new RuntimeException("Task id cannot be 0. What kind of sorcery is this?");
     }
 
-    Message msg = groundyHandler.obtainMessage();
-    msg.obj = taskId;
-
     int groupId = intent.getIntExtra(Groundy.KEY_GROUP_ID, DEFAULT_GROUP_ID);
     final boolean redelivery = flags == START_FLAG_REDELIVERY;
+
+    CoalesceKey coalesceKey = null;
+    if (intent.getBooleanExtra(Groundy.KEY_COALESCE, false)) {
+      coalesceKey = buildCoalesceKey(intent);
+      if (attachToCoalescedTask(coalesceKey, taskId, intent)) {
+        return null;
+      }
+    }
+
     final GroundyTask groundyTask = buildGroundyTask(intent, groupId, startId, redelivery);
-    mTasksSet.put(taskId, groundyTask);
-    if (!groundyHandler.sendMessage(msg)) {
-      mTasksSet.remove(taskId);
+    if (coalesceKey != null && groundyTask != null) {
+      synchronized (mCoalescedTasks) {
+        groundyTask.setCoalesceKey(coalesceKey);
+        mCoalescedTasks.put(coalesceKey, groundyTask);
+      }
+    }
+    return groundyTask;
+  }
+
+  private void dispatchTask(final GroundyTask groundyTask, final boolean async) {
+    long delay = groundyTask.getStartTime() - System.currentTimeMillis();
+    if (groundyTask.getStartTime() > 0 && delay > 0) {
+      groundyTask.setDelayedStart(mTimerWheel.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (mTasks.get(groundyTask.getId()) == groundyTask) {
+            dispatchNow(groundyTask, async);
+          }
+        }
+      }, delay));
+      return;
+    }
+    dispatchNow(groundyTask, async);
+  }
+
+  private void dispatchNow(GroundyTask groundyTask, boolean async) {
+    final int groupId = groundyTask.getGroupId();
+    boolean scheduled;
+    TaskRunner runner = new TaskRunner(groundyTask, async, mSubmissionCount.incrementAndGet());
+    if (mMode == GroundyMode.LANES && groupId != DEFAULT_GROUP_ID) {
+      scheduled = executeInLane(groupId, runner);
+    } else {
+      GroundyWorkerPool pool = async ? mAsyncPool : mQueuePool;
+      scheduled = pool.execute(runner);
+    }
+
+    if (!scheduled && mTasks.remove(groundyTask)) {
+      // pools only refuse work once the service is destroyed; the journal keeps the task
+      releaseCoalesceKey(groundyTask);
+    }
+  }
+
+  private static CoalesceKey buildCoalesceKey(Intent intent) {
+    Bundle extras = intent.getExtras();
+    Class<? extends GroundyTask> taskType =
+        ClassCache.forName(extras.getString(Groundy.KEY_TASK), GroundyTask.class);
+    String key = extras.getString(Groundy.KEY_COALESCE_KEY);
+    return new CoalesceKey(taskType, key, extras.getBundle(Groundy.KEY_ARGUMENTS));
+  }
+
+  /**
+   * Looks for an identical task that is queued or running and, if found, makes it send its
+   * callbacks to the receiver of this request too.
+   *
+   * @return true if the request was attached to an existing task and must not be scheduled
+   */
+  private boolean attachToCoalescedTask(CoalesceKey coalesceKey, long taskId, Intent intent) {
+    synchronized (mCoalescedTasks) {
+      GroundyTask existingTask = mCoalescedTasks.get(coalesceKey);
+      if (existingTask == null) {
+        return false;
+      }
+      if (existingTask.isQuitting()) {
+        // it is being stopped; let this request run on its own
+        mCoalescedTasks.remove(coalesceKey);
+        return false;
+      }
+
+      L.d(TAG, "Coalescing task " + taskId + " into " + existingTask);
+      ResultReceiver receiver = getReceiver(intent.getExtras(), taskId);
+      if (receiver != null) {
+        existingTask.send(receiver, OnStart.class, new Bundle());
+        existingTask.appendReceiver(receiver);
+      }
+      mCoalescedAliases.put(taskId, new CoalescedAlias(existingTask, receiver));
+      // its args are never read, but their large values may have been written for it
+      LargeValue.deleteFiles(intent.getBundleExtra(Groundy.KEY_ARGUMENTS),
+          existingTask.getOriginalArgs());
+      return true;
+    }
+  }
+
+  /**
+   * @return the receiver of the request; if it was sent through a shared channel, a receiver that
+   *         tags events with the request id before passing them to the channel
+   */
+  private static ResultReceiver getReceiver(Bundle extras, long requestId) {
+    ResultReceiver receiver = (ResultReceiver) extras.get(Groundy.KEY_RECEIVER);
+    if (receiver != null && extras.getBoolean(Groundy.KEY_SHARED_CHANNEL)) {
+      return new CallbacksChannel.Sender(receiver, requestId);
+    }
+    return receiver;
+  }
+
+  /** Identical requests will no longer be attached to this task. */
+  private void releaseCoalesceKey(GroundyTask groundyTask) {
+    if (groundyTask == null || groundyTask.getCoalesceKey() == null) {
+      return;
+    }
+    synchronized (mCoalescedTasks) {
+      CoalesceKey coalesceKey = groundyTask.getCoalesceKey();
+      if (mCoalescedTasks.get(coalesceKey) == groundyTask) {
+        mCoalescedTasks.remove(coalesceKey);
+      }
+      Iterator<CoalescedAlias> aliases = mCoalescedAliases.values().iterator();
+      while (aliases.hasNext()) {
+        if (aliases.next().mTask == groundyTask) {
+          aliases.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * A request that was coalesced into an existing task can't cancel it, since other callers
+   * depend on it. Instead, its receiver is detached and notified as cancelled.
+   */
+  private int cancelCoalescedAlias(long id, int reason) {
+    CoalescedAlias alias;
+    synchronized (mCoalescedTasks) {
+      alias = mCoalescedAliases.remove(id);
+    }
+    if (alias == null) {
+      return COULD_NOT_CANCEL;
+    }
+
+    if (alias.mReceiver != null) {
+      alias.mTask.removeReceiver(alias.mReceiver);
+      Bundle resultData = new Bundle();
+      resultData.putInt(Groundy.CANCEL_REASON, reason);
+      alias.mTask.send(alias.mReceiver, OnCancel.class, resultData);
+    }
+    return alias.mTask.alreadyExecuted() ? INTERRUPTED : NOT_EXECUTED;
+  }
+
+  private boolean executeInLane(int groupId, TaskRunner runner) {
+    synchronized (mLanes) {
+      Lane lane = mLanes.get(groupId);
+      if (lane == null) {
+        lane = new Lane(groupId);
+        mLanes.put(groupId, lane);
+      }
+
+      if (lane.mBusy) {
+        lane.mPending.add(runner);
+        return true;
+      }
+
+      lane.mBusy = true;
+      if (!mAsyncPool.execute(new LaneRunner(lane, runner))) {
+        mLanes.remove(groupId);
+        return false;
+      }
+      return true;
+    }
+  }
+
+  private void onLaneTaskDone(Lane lane) {
+    synchronized (mLanes) {
+      TaskRunner next = lane.mPending.poll();
+      if (next != null && mAsyncPool.execute(new LaneRunner(lane, next))) {
+        return;
+      }
+
+      lane.mBusy = false;
+      lane.mPending.clear();
+      if (mLanes.get(lane.mGroupId) == lane) {
+        mLanes.remove(lane.mGroupId);
+      }
     }
   }
 
   private void cancelAllTasks() {
     L.e(TAG, "Cancelling all tasks");
-    mGroundyHandler.removeMessages(DEFAULT_GROUP_ID);
     internalQuit(GroundyTask.CANCEL_ALL);
     stopSelf();
   }
@@ -207,34 +659,43 @@ public class GroundyService extends Service {
     if (reason == Integer.MIN_VALUE) {
       throw new IllegalArgumentException("reason cannot be Integer.MIN_VALUE");
     }
-    GroundyTask groundyTask = mTasksSet.remove(id);
+    GroundyTask groundyTask = mTasks.remove(id);
     if (groundyTask == null) {
-      return COULD_NOT_CANCEL;
+      return cancelCoalescedAlias(id, reason);
     }
+    recordFinished(groundyTask);
+    releaseCoalesceKey(groundyTask);
+    boolean retryPending = groundyTask.cancelDelayedStart() && groundyTask.alreadyExecuted();
 
     if (!groundyTask.alreadyExecuted()) {
+      // it was told it started, so it is told it ended; this also frees its channel entry
+      groundyTask.stopTask(reason);
+      sendCancelled(groundyTask);
+      stopIfDone(groundyTask);
       return NOT_EXECUTED;
     }
 
     groundyTask.stopTask(reason);
+    if (retryPending) {
+      sendCancelled(groundyTask);
+      stopIfDone(groundyTask);
+    }
     return INTERRUPTED;
   }
 
   private List<TaskHandler> attachCallbacks(Class<? extends GroundyTask> task,
                                             Object... callbacks) {
     List<TaskHandler> handlers = new ArrayList<TaskHandler>();
-    synchronized (mTasksSet) {
-      for (GroundyTask groundyTask : mTasksSet.values()) {
-        if (groundyTask.getClass() == task) {
-          final CallbacksReceiver receiver = new CallbacksReceiver(task, callbacks);
-          groundyTask.appendReceiver(receiver);
-
-          AttachedTaskHandlerImpl taskHandler =
-              new AttachedTaskHandlerImpl(groundyTask.getId(), GroundyService.this.getClass(),
-                  receiver, task);
-          handlers.add(taskHandler);
-        }
-      }
+    for (GroundyTask groundyTask : mTasks.getByType(task)) {
+      final CallbacksReceiver receiver = new CallbacksReceiver(task, callbacks);
+      // same process, so the handlers can read the args of the task itself
+      receiver.setOriginalParams(groundyTask.getOriginalArgs());
+      groundyTask.appendReceiver(receiver);
+
+      AttachedTaskHandlerImpl taskHandler =
+          new AttachedTaskHandlerImpl(groundyTask.getId(), GroundyService.this.getClass(),
+              receiver, task);
+      handlers.add(taskHandler);
     }
     return handlers;
   }
@@ -257,32 +718,26 @@ public class GroundyService extends Service {
           + "If your service gets killed unpredictable behavior can happen.");
     }
 
-    // prevent current scheduled tasks with this group id from executing
-    mGroundyHandler.removeMessages(groupId);
-
     Set<Long> notExecutedTasks = new HashSet<Long>();
     Set<Long> interruptedTasks = new HashSet<Long>();
-    if (mTasksSet.isEmpty()) {
-      // there's nothing to do
-      return new CancelGroupResponse(interruptedTasks, notExecutedTasks);
-    }
-
-    synchronized (mTasksSet) {
-      Set<Long> taskIdSet = mTasksSet.keySet();
-      for (Long taskId : taskIdSet) {
-        GroundyTask groundyTask = mTasksSet.get(taskId);
-        if (groundyTask.getGroupId() == groupId) {
-          if (!groundyTask.alreadyExecuted()) { // value didn't even run
-            notExecutedTasks.add(taskId);
-          } else { // value was already created and executed
-            groundyTask.stopTask(reason);
-            interruptedTasks.add(taskId);
-          }
+    for (GroundyTask groundyTask : mTasks.removeGroup(groupId)) {
+      long taskId = groundyTask.getId();
+      recordFinished(groundyTask);
+      releaseCoalesceKey(groundyTask);
+      boolean retryPending = groundyTask.cancelDelayedStart();
+      if (!groundyTask.alreadyExecuted()) { // value didn't even run
+        notExecutedTasks.add(taskId);
+        groundyTask.stopTask(reason);
+        sendCancelled(groundyTask);
+        stopIfDone(groundyTask);
+      } else { // value was already created and executed
+        groundyTask.stopTask(reason);
+        if (retryPending) {
+          sendCancelled(groundyTask);
+          stopIfDone(groundyTask);
         }
+        interruptedTasks.add(taskId);
       }
-      taskIdSet.removeAll(notExecutedTasks);
-      taskIdSet.removeAll(interruptedTasks);
-      notExecutedTasks.removeAll(interruptedTasks);
     }
     return new CancelGroupResponse(interruptedTasks, notExecutedTasks);
   }
@@ -306,28 +761,33 @@ public class GroundyService extends Service {
   }
 
   private void internalQuit(int quittingReason) {
-    if (mMode == GroundyMode.ASYNC) {
-      synchronized (mAsyncLoopers) {
-        for (Looper asyncLooper : mAsyncLoopers) {
-          asyncLooper.quit();
-        }
+    mQueuePool.clear();
+    if (mAsyncPool != null) {
+      mAsyncPool.clear();
+    }
+    synchronized (mLanes) {
+      for (Lane lane : mLanes.values()) {
+        lane.mPending.clear();
       }
     }
 
-    synchronized (mTasksSet) {
-      Set<Integer> alreadyStopped = new HashSet<Integer>();
-      for (Map.Entry<Long, GroundyTask> taskEntry : mTasksSet.entrySet()) {
-        GroundyTask task = taskEntry.getValue();
-        if (task != null) {
-          task.stopTask(quittingReason);
-          final int groupId = task.getGroupId();
-          if (groupId != DEFAULT_GROUP_ID && !alreadyStopped.contains(groupId)) {
-            mGroundyHandler.removeMessages(task.getGroupId());
-            alreadyStopped.add(groupId);
-          }
-        }
+    discardPartialBatches(quittingReason);
+    for (GroundyTask task : mTasks.clear()) {
+      boolean retryPending = task.cancelDelayedStart() && task.alreadyExecuted();
+      task.stopTask(quittingReason);
+      if (retryPending || !task.alreadyExecuted()) {
+        // running tasks send their own ending event once they return
+        sendCancelled(task);
+      }
+      if (quittingReason != GroundyTask.SERVICE_DESTROYED) {
+        // tasks stopped because the service goes away are not finished; they will be replayed
+        recordFinished(task);
       }
-      mTasksSet.clear();
+    }
+    mTimerWheel.clear();
+    synchronized (mCoalescedTasks) {
+      mCoalescedTasks.clear();
+      mCoalescedAliases.clear();
     }
   }
 
@@ -339,9 +799,10 @@ public class GroundyService extends Service {
    *
    * @param groundyTask task to execute
    */
-  private void onHandleIntent(GroundyTask groundyTask) {
+  private boolean onHandleIntent(TaskRunner runner) {
+    GroundyTask groundyTask = runner.mTask;
     if (groundyTask == null) {
-      return;
+      return true;
     }
     boolean requiresWifi = groundyTask.keepWifiOn();
     if (requiresWifi) {
@@ -350,12 +811,19 @@ public class GroundyService extends Service {
 
     L.d(TAG, "Executing value: " + groundyTask);
     TaskResult taskResult;
+    Exception error = null;
 
     try {
-      taskResult = groundyTask.doInBackground();
+      if (groundyTask.isQuitting()) {
+        // a retry that was cancelled right when it was about to start
+        taskResult = new Cancelled();
+      } else {
+        taskResult = groundyTask.doInBackground();
+      }
     } catch (Exception e) {
       e.printStackTrace();
 
+      error = e;
       taskResult = new Failed();
       taskResult.add(Groundy.CRASH_MESSAGE, String.valueOf(e.getMessage()));
     }
@@ -369,10 +837,30 @@ public class GroundyService extends Service {
       mWakeLockHelper.release();
     }
 
+    if (!runner.finish()) {
+      L.d(TAG, "Ignoring result of " + groundyTask + "; it already timed out");
+      return false;
+    }
+
+    if (taskResult.getType() == ResultType.FAIL && scheduleRetry(runner, taskResult, error)) {
+      return false;
+    }
+
+    if (taskResult.getType() == ResultType.SUCCESS && groundyTask.getNextStage() != null) {
+      taskResult = startNextStage(runner, taskResult);
+      if (taskResult == null) {
+        return false;
+      }
+    }
+
+    // from now on, identical requests must be executed on their own
+    releaseCoalesceKey(groundyTask);
+
     //Lets try to send back the response
     Bundle resultData = taskResult.getResultData();
-    resultData.putBundle(Groundy.ORIGINAL_PARAMS, groundyTask.getArgs());
-    resultData.putSerializable(Groundy.TASK_IMPLEMENTATION, groundyTask.getClass());
+    if (groundyTask.sendsOriginalParams()) {
+      resultData.putBundle(Groundy.ORIGINAL_PARAMS, groundyTask.getOriginalArgs());
+    }
 
     switch (taskResult.getType()) {
       case SUCCESS:
@@ -386,6 +874,233 @@ public class GroundyService extends Service {
         groundyTask.send(OnCancel.class, resultData);
         break;
     }
+    return true;
+  }
+
+  /**
+   * Reschedules a failed task if its retry policy allows it.
+   *
+   * @return true if the task will be retried and the failure must not be delivered yet
+   */
+  private boolean scheduleRetry(TaskRunner runner, TaskResult taskResult, Exception error) {
+    final GroundyTask groundyTask = runner.mTask;
+    final boolean async = runner.mAsync;
+    RetryPolicy retryPolicy = groundyTask.getRetryPolicy();
+    int attempt = groundyTask.getAttempt();
+    if (retryPolicy == null || attempt >= retryPolicy.getMaxAttempts()
+        || groundyTask.isQuitting() || !groundyTask.shouldRetry(taskResult, error)) {
+      return false;
+    }
+
+    long delay = retryPolicy.getDelay(attempt);
+    L.d(TAG, "Retrying " + groundyTask + " in " + delay + "ms. Attempt " + attempt + " failed");
+    groundyTask.setAttempt(attempt + 1);
+    // nothing else of its group runs until the retry does
+    holdLane(runner, groundyTask);
+    groundyTask.setDelayedStart(mTimerWheel.schedule(new Runnable() {
+      @Override
+      public void run() {
+        // unlike delayed starts, retries run even if cancelled meanwhile, so that callbacks
+        // always get a result; they will find the task quitting
+        dispatchHeld(groundyTask, async);
+      }
+    }, delay));
+    return true;
+  }
+
+  /** Keeps the lane of the runner, if any, busy once it returns, so the task continues in it. */
+  private void holdLane(TaskRunner runner, GroundyTask groundyTask) {
+    if (runner instanceof LaneRunner && ((LaneRunner) runner).handOver()) {
+      synchronized (mLanes) {
+        mHeldLanes.put(groundyTask, ((LaneRunner) runner).mLane);
+      }
+    }
+  }
+
+  /** Executes the task at the head of the lane held for it, or as usual if it holds none. */
+  private void dispatchHeld(GroundyTask groundyTask, boolean async) {
+    Lane lane;
+    synchronized (mLanes) {
+      lane = mHeldLanes.remove(groundyTask);
+    }
+    if (lane == null) {
+      dispatchNow(groundyTask, async);
+      return;
+    }
+
+    TaskRunner runner = new TaskRunner(groundyTask, async, mSubmissionCount.incrementAndGet());
+    if (!mAsyncPool.execute(new LaneRunner(lane, runner))) {
+      // pools only refuse work once the service is destroyed; the journal keeps the task
+      onLaneTaskDone(lane);
+      if (mTasks.remove(groundyTask)) {
+        releaseCoalesceKey(groundyTask);
+      }
+    }
+  }
+
+  /** Lets the lane held for a task that won't continue run the rest of its group. */
+  private void releaseHeldLane(GroundyTask groundyTask) {
+    Lane lane;
+    synchronized (mLanes) {
+      lane = mHeldLanes.remove(groundyTask);
+    }
+    if (lane != null) {
+      onLaneTaskDone(lane);
+    }
+  }
+
+  /**
+   * Replaces a pipeline stage that succeeded with the next one and schedules it.
+   *
+   * @return null if the next stage was scheduled; otherwise the result to deliver
+   */
+  private TaskResult startNextStage(TaskRunner runner, TaskResult previousResult) {
+    GroundyTask previous = runner.mTask;
+    Class<? extends GroundyTask> stageType = previous.getNextStage();
+    GroundyTask nextStage = GroundyTaskFactory.get(stageType, this);
+    if (nextStage == null) {
+      TaskResult failed = new Failed();
+      failed.add(Groundy.CRASH_MESSAGE, "Could not create pipeline stage " + stageType);
+      return failed;
+    }
+    // receivers are copied while no request can be coalesced into the pipeline, and those
+    // coalesced later join the next stage
+    synchronized (mCoalescedTasks) {
+      nextStage.continueFrom(previous, previousResult.getResultData());
+      if (previous.isQuitting() || !mTasks.replace(previous, nextStage)) {
+        // cancelled while running
+        return new Cancelled();
+      }
+
+      CoalesceKey coalesceKey = previous.getCoalesceKey();
+      if (coalesceKey != null && mCoalescedTasks.get(coalesceKey) == previous) {
+        nextStage.setCoalesceKey(coalesceKey);
+        mCoalescedTasks.put(coalesceKey, nextStage);
+      }
+      for (Map.Entry<Long, CoalescedAlias> alias : mCoalescedAliases.entrySet()) {
+        if (alias.getValue().mTask == previous) {
+          alias.setValue(new CoalescedAlias(nextStage, alias.getValue().mReceiver));
+        }
+      }
+    }
+
+    L.d(TAG, "Pipeline of " + previous + " continues with " + nextStage);
+    holdLane(runner, nextStage);
+    dispatchHeld(nextStage, runner.mAsync);
+    return null;
+  }
+
+  /** Notifies a task that won't run anymore as cancelled. */
+  private void sendCancelled(GroundyTask groundyTask) {
+    releaseCoalesceKey(groundyTask);
+    releaseHeldLane(groundyTask);
+    Bundle resultData = new Bundle();
+    if (groundyTask.sendsOriginalParams()) {
+      resultData.putBundle(Groundy.ORIGINAL_PARAMS, groundyTask.getOriginalArgs());
+    }
+    resultData.putInt(Groundy.CANCEL_REASON, groundyTask.getQuittingReason());
+    groundyTask.send(OnCancel.class, resultData);
+  }
+
+  private void executeTask(TaskRunner runner) {
+    GroundyTask groundyTask = runner.mTask;
+    final long taskId = groundyTask.getId();
+    if (taskId == 0) {
+      throw new RuntimeException("Task id cannot be 0. What kind of sorcery is this?");
+    }
+
+    // retries and pipeline stages are executed even if the task was cancelled meanwhile
+    if (groundyTask.isFollowUp() || mTasks.get(taskId) == groundyTask) {
+      groundyTask.flagAsExecuted();
+      if (mJournal != null) {
+        mJournal.started(taskId);
+      }
+      watch(runner);
+      if (!onHandleIntent(runner)) {
+        // it will be executed again or it timed out; either way it's not done here
+        return;
+      }
+      finishTask(groundyTask);
+    } else {
+      stopIfDone(groundyTask);
+    }
+  }
+
+  private void finishTask(GroundyTask groundyTask) {
+    mTasks.remove(groundyTask);
+    if (groundyTask.getQuittingReason() != GroundyTask.SERVICE_DESTROYED) {
+      // even if it was removed by a cancel or a quit, it's done; unless the service went away
+      // while it ran, in which case it is replayed
+      recordFinished(groundyTask);
+    }
+    stopIfDone(groundyTask);
+  }
+
+  /**
+   * Stops the intent of a task that won't run anymore, either because it finished or because it
+   * was cancelled before running (or while waiting for a retry).
+   */
+  private void stopIfDone(GroundyTask groundyTask) {
+    stopIfDone(groundyTask.getStartId());
+  }
+
+  private void stopIfDone(int startId) {
+    if (mMode == GroundyMode.QUEUE && startId != REPLAYED_START_ID
+        && (startId != mLastStartId.get() || mTasks.isEmpty())) {
+      // when in queue mode, we must stop each intent received; but tasks don't necessarily
+      // finish in the order they were received (priorities, delays), and stopping the latest
+      // intent while there are pending tasks would kill the service
+      stopSelf(startId);
+    }
+
+    boolean waitingForBatches;
+    synchronized (mPartialBatches) {
+      waitingForBatches = !mPartialBatches.isEmpty();
+    }
+    if (mTasks.isEmpty() && !waitingForBatches) {
+      // stop the service by calling stopSelf with the latest startId
+      stopSelf(mLastStartId.get());
+    }
+  }
+
+  /** Records a task that won't run again and deletes the files of its large args, if any. */
+  private void recordFinished(GroundyTask groundyTask) {
+    if (mJournal != null) {
+      mJournal.finished(groundyTask.getId());
+    }
+    LargeValue.deleteFiles(groundyTask.getOriginalArgs());
+  }
+
+  /** Starts the watchdog of the current execution if the task has a timeout. */
+  private void watch(final TaskRunner runner) {
+    long timeout = runner.mTask.getTimeout();
+    if (timeout > 0) {
+      runner.mWatchdog = mTimerWheel.schedule(new Runnable() {
+        @Override
+        public void run() {
+          onTimeout(runner);
+        }
+      }, timeout);
+    }
+  }
+
+  private void onTimeout(TaskRunner runner) {
+    if (!runner.finish()) {
+      return;
+    }
+
+    GroundyTask groundyTask = runner.mTask;
+    L.e(TAG, "Task timed out: " + groundyTask);
+    groundyTask.stopTask(GroundyTask.TIMEOUT);
+
+    // the thread might never return; let the pool replace it so that pending tasks keep running
+    if (!mQueuePool.abandon(runner) && mAsyncPool != null) {
+      mAsyncPool.abandon(runner);
+    }
+    runner.onAbandoned();
+
+    sendCancelled(groundyTask);
+    finishTask(groundyTask);
   }
 
   private GroundyTask buildGroundyTask(Intent intent, int groupId, int startId,
@@ -393,9 +1108,9 @@ public class GroundyService extends Service {
     Bundle extras = intent.getExtras();
     extras = (extras == null) ? new Bundle() : extras;
 
-    Class<?> taskName = (Class<?>) extras.getSerializable(Groundy.KEY_TASK);
-    //noinspection unchecked
-    GroundyTask groundyTask = GroundyTaskFactory.get((Class<? extends GroundyTask>) taskName, this);
+    Class<? extends GroundyTask> taskType =
+        ClassCache.forName(extras.getString(Groundy.KEY_TASK), GroundyTask.class);
+    GroundyTask groundyTask = taskType == null ? null : GroundyTaskFactory.get(taskType, this);
     if (groundyTask == null) {
       L.e(TAG, "Groundy value no provided");
       return null;
@@ -404,17 +1119,28 @@ public class GroundyService extends Service {
     groundyTask.setId(taskId);
 
     // set up the result receiver(s)
-    ResultReceiver receiver = (ResultReceiver) extras.get(Groundy.KEY_RECEIVER);
+    ResultReceiver receiver = getReceiver(extras, taskId);
     if (receiver != null) {
       groundyTask.setReceiver(receiver);
     }
-    final Bundle resultData = new Bundle();
-    resultData.putSerializable(Groundy.TASK_IMPLEMENTATION, getClass());
-    groundyTask.send(OnStart.class, resultData);
+    groundyTask.send(OnStart.class, new Bundle());
 
     groundyTask.setStartId(startId);
     groundyTask.setGroupId(groupId);
+    groundyTask.setPriority(extras.getInt(Groundy.KEY_PRIORITY, Groundy.DEFAULT_PRIORITY));
+    groundyTask.setStartTime(extras.getLong(Groundy.KEY_START_TIME, 0));
+    groundyTask.setRetryPolicy(RetryPolicy.fromBundle(extras.getBundle(Groundy.KEY_RETRY_POLICY)));
+    // cached task instances are reused, so the state of their last run must not leak into this one
+    groundyTask.setAttempt(1);
+    groundyTask.setStage(0);
+    groundyTask.setTimeout(extras.getLong(Groundy.KEY_TIMEOUT, 0));
+    groundyTask.setProgressTimer(mTimerWheel);
+    List<String> stageNames = extras.getStringArrayList(Groundy.KEY_PIPELINE);
+    List<Class<? extends GroundyTask>> pipeline =
+        ClassCache.forNames(stageNames, GroundyTask.class);
+    groundyTask.setPipeline(pipeline);
     groundyTask.setRedelivered(redelivery);
+    groundyTask.setSendsOriginalParams(!extras.getBoolean(Groundy.KEY_SKIP_ORIGINAL_PARAMS));
     groundyTask.addArgs(extras.getBundle(Groundy.KEY_ARGUMENTS));
     if (Groundy.devMode) {
       Object[] rawElements = (Object[]) extras.getSerializable(Groundy.STACK_TRACE);
@@ -427,9 +1153,26 @@ public class GroundyService extends Service {
       }
     }
     groundyTask.setIntent(intent);
+    if (stageNames != null && pipeline == null) {
+      // like a stage that can't be created, the rest of the pipeline can't run without it
+      failUnscheduled(groundyTask, "Could not find the stages of pipeline " + stageNames);
+      return null;
+    }
     return groundyTask;
   }
 
+  /** Delivers a failure for a task that will never be executed and forgets about it. */
+  private void failUnscheduled(GroundyTask groundyTask, String message) {
+    TaskResult failed = new Failed();
+    failed.add(Groundy.CRASH_MESSAGE, message);
+    Bundle resultData = failed.getResultData();
+    if (groundyTask.sendsOriginalParams()) {
+      resultData.putBundle(Groundy.ORIGINAL_PARAMS, groundyTask.getOriginalArgs());
+    }
+    groundyTask.send(OnFailure.class, resultData);
+    recordFinished(groundyTask);
+  }
+
   private void updateModeFromMetadata() {
     ServiceInfo info = null;
     try {
@@ -448,15 +1191,27 @@ public class GroundyService extends Service {
       String modeData = info.metaData.getString(KEY_MODE);
       if (GroundyMode.ASYNC.toString().equalsIgnoreCase(modeData)) {
         mMode = GroundyMode.ASYNC;
+      } else if (GroundyMode.LANES.toString().equalsIgnoreCase(modeData)) {
+        mMode = GroundyMode.LANES;
       } else {
         mMode = GroundyMode.QUEUE;
       }
     }
 
+    // update async pool configuration
+    mMaxThreads = info.metaData.getInt(KEY_MAX_THREADS, DEFAULT_MAX_THREADS);
+    if (mMaxThreads <= 0) {
+      throw new IllegalArgumentException(KEY_MAX_THREADS + " must be greater than zero");
+    }
+    mKeepAlive = info.metaData.getInt(KEY_KEEP_ALIVE, DEFAULT_KEEP_ALIVE);
+    if (mKeepAlive < 0) {
+      throw new IllegalArgumentException(KEY_KEEP_ALIVE + " cannot be negative");
+    }
+
     // update service behavior
     boolean forceQueueCompletion = info.metaData.getBoolean(KEY_FORCE_QUEUE_COMPLETION, false);
     if (forceQueueCompletion) {
-      if (mMode == GroundyMode.ASYNC) {
+      if (mMode != GroundyMode.QUEUE) {
         throw new UnsupportedOperationException(
             "force_queue_completion can only be used when in 'queue' mode");
       }
@@ -464,35 +1219,142 @@ public class GroundyService extends Service {
     } else {
       mStartBehavior = START_NOT_STICKY;
     }
+
+    mUseJournal = info.metaData.getBoolean(KEY_JOURNAL, false);
+  }
+
+  private static PriorityQueue<Runnable> newRunnerQueue() {
+    return new PriorityQueue<Runnable>(INITIAL_QUEUE_CAPACITY, RUNNER_ORDER);
   }
 
-  private final class GroundyHandler extends Handler {
-    public GroundyHandler(Looper looper) {
-      super(looper);
+  private class TaskRunner implements Runnable, Comparable<TaskRunner> {
+    private final GroundyTask mTask;
+    private final boolean mAsync;
+    private final int mPriority;
+    private final long mSequence;
+    private final AtomicBoolean mFinished = new AtomicBoolean();
+    private volatile TimerWheel.Timeout mWatchdog;
+
+    TaskRunner(GroundyTask task, boolean async, long sequence) {
+      mTask = task;
+      mAsync = async;
+      mPriority = task.getPriority();
+      mSequence = sequence;
     }
 
     @Override
-    public void handleMessage(Message msg) {
-      Long taskId = (Long) msg.obj;
-      if (taskId == 0) {
-        throw new RuntimeException("Task id cannot be 0. What kind of sorcery is this?");
+    public void run() {
+      executeTask(this);
+    }
+
+    /**
+     * Either the execution finishes or its watchdog goes off; never both.
+     *
+     * @return false if the other one already happened
+     */
+    boolean finish() {
+      if (!mFinished.compareAndSet(false, true)) {
+        return false;
+      }
+      TimerWheel.Timeout watchdog = mWatchdog;
+      if (watchdog != null) {
+        watchdog.cancel();
       }
+      return true;
+    }
 
-      GroundyTask groundyTask = mTasksSet.get(taskId);
-      if (groundyTask != null) {
-        groundyTask.flagAsExecuted();
-        onHandleIntent(groundyTask);
-        mTasksSet.remove(taskId);
+    /** Called when the thread executing this runner was abandoned because it timed out. */
+    void onAbandoned() {
+    }
 
-        if (mMode == GroundyMode.QUEUE) {
-          // when in queue mode, we must stop each intent received
-          stopSelf(groundyTask.getStartId());
-        }
+    @Override
+    public int compareTo(TaskRunner another) {
+      if (mPriority != another.mPriority) {
+        return mPriority > another.mPriority ? -1 : 1;
+      }
+      if (mSequence == another.mSequence) {
+        return 0;
+      }
+      return mSequence < another.mSequence ? -1 : 1;
+    }
+  }
+
+  /** A request that was coalesced into an existing task. */
+  private static final class CoalescedAlias {
+    private final GroundyTask mTask;
+    private final ResultReceiver mReceiver;
+
+    CoalescedAlias(GroundyTask task, ResultReceiver receiver) {
+      mTask = task;
+      mReceiver = receiver;
+    }
+  }
+
+  /** Tasks of a batch whose parts have not all arrived yet. */
+  private static final class PartialBatch {
+    private final long mBatchId;
+    private final int mParts;
+    private final boolean mAsync;
+    private final List<Bundle> mTasks = new ArrayList<Bundle>();
+    private int mReceivedParts;
+    // start id of the last part received
+    private int mStartId;
+    private TimerWheel.Timeout mExpiry;
+
+    PartialBatch(long batchId, int parts, boolean async) {
+      mBatchId = batchId;
+      mParts = parts;
+      mAsync = async;
+    }
+  }
+
+  /** Tasks of the same group waiting for the previous one to finish. */
+  private static final class Lane {
+    private final int mGroupId;
+    private final Queue<TaskRunner> mPending = new LinkedList<TaskRunner>();
+    private boolean mBusy;
+
+    Lane(int groupId) {
+      mGroupId = groupId;
+    }
+  }
+
+  /** Executes the head of a lane and then hands the pool the next task of that lane, if any. */
+  private final class LaneRunner extends TaskRunner {
+    private final Lane mLane;
+    private final AtomicBoolean mReleased = new AtomicBoolean();
+
+    LaneRunner(Lane lane, TaskRunner head) {
+      super(head.mTask, head.mAsync, head.mSequence);
+      mLane = lane;
+    }
+
+    @Override
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        release();
       }
+    }
+
+    @Override
+    void onAbandoned() {
+      release();
+    }
+
+    /**
+     * Makes the lane stay busy after this runner returns, since the task continues in it.
+     *
+     * @return false if the lane was already released
+     */
+    boolean handOver() {
+      return mReleased.compareAndSet(false, true);
+    }
 
-      if (mTasksSet.isEmpty()) {
-        // stop the service by calling stopSelf with the latest startId
-        stopSelf(mLastStartId.get());
+    private void release() {
+      if (mReleased.compareAndSet(false, true)) {
+        onLaneTaskDone(mLane);
       }
     }
   }
@@ -30,13 +30,15 @@ import android.os.ResultReceiver;
 import com.telly.groundy.annotations.OnCallback;
 import com.telly.groundy.annotations.OnProgress;
 import java.lang.annotation.Annotation;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /** Implementation of this class get executed by the {@link GroundyService}. */
 public abstract class GroundyTask {
   protected static final int CANCEL_ALL = -1;
   protected static final int SERVICE_DESTROYED = -2;
   protected static final int CANCEL_BY_GROUP = -3;
+  protected static final int TIMEOUT = -4;
   static final int RESULT_CODE_CALLBACK_ANNOTATION = 888;
 
   private Context mContext;
@@ -45,12 +47,25 @@ public abstract class GroundyTask {
   private ResultReceiver mReceiver;
   private volatile int mQuittingReason = Integer.MIN_VALUE;
   private int mGroupId;
+  private int mPriority;
   private boolean mRedelivered;
+  private boolean mSendsOriginalParams = true;
   private long mId;
   private StackTraceElement[] mStackTrace;
   private Intent mIntent;
-  private ArrayList<ResultReceiver> mExtraReceivers;
+  private final List<ResultReceiver> mExtraReceivers =
+      new CopyOnWriteArrayList<ResultReceiver>();
   private boolean mExecuted;
+  private CoalesceKey mCoalesceKey;
+  private long mStartTime;
+  private volatile TimerWheel.Timeout mDelayedStart;
+  private RetryPolicy mRetryPolicy;
+  private volatile int mAttempt = 1;
+  private long mTimeout;
+  private List<Class<? extends GroundyTask>> mPipeline;
+  private int mStage;
+  private TimerWheel mProgressTimer;
+  private volatile ProgressThrottle mProgressThrottle;
 
   /** Creates a GroundyTask composed of. */
   public GroundyTask() {
@@ -68,6 +83,14 @@ public abstract class GroundyTask {
     return mGroupId;
   }
 
+  final void setPriority(int priority) {
+    mPriority = priority;
+  }
+
+  protected final int getPriority() {
+    return mPriority;
+  }
+
   final void setStartId(int startId) {
     mStartId = startId;
   }
@@ -80,6 +103,18 @@ public abstract class GroundyTask {
     mRedelivered = redelivered;
   }
 
+  void setSendsOriginalParams(boolean sendsOriginalParams) {
+    mSendsOriginalParams = sendsOriginalParams;
+  }
+
+  /**
+   * @return false if the args of this task must not be sent back with its results, because the
+   *         receivers of the request keep their own copy or none of their handlers reads them
+   */
+  boolean sendsOriginalParams() {
+    return mSendsOriginalParams;
+  }
+
   final void setId(long id) {
     mId = id;
   }
@@ -143,6 +178,12 @@ public abstract class GroundyTask {
     return mArgs;
   }
 
+  /** @return the args the task was sent with; later pipeline stages keep those of the first one */
+  Bundle getOriginalArgs() {
+    Bundle originalArgs = mIntent == null ? null : mIntent.getBundleExtra(Groundy.KEY_ARGUMENTS);
+    return originalArgs == null ? mArgs : originalArgs;
+  }
+
   protected String getStringArg(String key) {
     return getStringArg(key, null);
   }
@@ -161,6 +202,14 @@ public abstract class GroundyTask {
     return value != null ? value : defValue;
   }
 
+  /**
+   * @return the large value sent using {@link Groundy#arg(String, LargeValue)}, or null. Its bytes
+   *         are only read or mapped when asked for
+   */
+  protected LargeValue getLargeArg(String key) {
+    return (LargeValue) mArgs.getParcelable(key);
+  }
+
   protected int getIntArg(String key) {
     return getIntArg(key, 0);
   }
@@ -206,20 +255,32 @@ public abstract class GroundyTask {
   }
 
   void send(Class<? extends Annotation> callbackAnnotation, Bundle resultData) {
-    internalSend(mReceiver, resultData, callbackAnnotation);
-    if (mExtraReceivers != null) {
-      for (ResultReceiver extraReceiver : mExtraReceivers) {
-        internalSend(extraReceiver, resultData, callbackAnnotation);
-      }
+    int callbackKind = CallbackKind.of(callbackAnnotation);
+    if (CallbackKind.isEnding(callbackKind)) {
+      // the last progress reported must arrive before the task ends
+      closeProgress();
+    }
+    internalSend(mReceiver, resultData, callbackKind);
+    for (ResultReceiver extraReceiver : mExtraReceivers) {
+      internalSend(extraReceiver, resultData, callbackKind);
     }
   }
 
-  private void internalSend(ResultReceiver receiver, Bundle resultData,
-      Class<? extends Annotation> callbackAnnotation) {
+  void send(ResultReceiver receiver, Class<? extends Annotation> callbackAnnotation,
+      Bundle resultData) {
+    internalSend(receiver, resultData, CallbackKind.of(callbackAnnotation));
+  }
+
+  /**
+   * Callback bundles carry the kind of callback as a {@link CallbackKind} code and the task class
+   * as its name; receivers turn the name back into {@link Groundy#TASK_IMPLEMENTATION}.
+   */
+  private void internalSend(ResultReceiver receiver, Bundle resultData, int callbackKind) {
     if (receiver != null) {
       if (resultData == null) resultData = new Bundle();
       resultData.putLong(Groundy.TASK_ID, getId());
-      resultData.putSerializable(Groundy.KEY_CALLBACK_ANNOTATION, callbackAnnotation);
+      resultData.putInt(Groundy.KEY_CALLBACK_KIND, callbackKind);
+      resultData.putString(Groundy.KEY_TASK, ClassCache.nameOf(getClass()));
       receiver.send(RESULT_CODE_CALLBACK_ANNOTATION, resultData);
     }
   }
@@ -242,7 +303,6 @@ public abstract class GroundyTask {
   protected void callback(String name, Bundle resultData) {
     if (resultData == null) resultData = new Bundle();
     resultData.putString(Groundy.KEY_CALLBACK_NAME, name);
-    resultData.putSerializable(Groundy.TASK_IMPLEMENTATION, getClass());
     send(OnCallback.class, resultData);
   }
 
@@ -291,16 +351,28 @@ public abstract class GroundyTask {
   /**
    * Prepare and sends a progress update to the current receiver. Callback used is {@link
    * com.telly.groundy.annotations.OnProgress} and it will contain a bundle with an integer extra
-   * called {@link Groundy#PROGRESS}
+   * called {@link Groundy#PROGRESS}. Updates are throttled as the {@link #progressPolicy()} says;
+   * an update that is superseded before it is sent is dropped along with its extra data.
    *
    * @param extraData additional information to send to the progress callback
    * @param progress percentage to send to receiver
    */
   public void updateProgress(int progress, Bundle extraData) {
+    if (mReceiver == null) {
+      return;
+    }
+    ProgressThrottle progressThrottle = mProgressThrottle;
+    if (progressThrottle != null) {
+      progressThrottle.update(progress, extraData);
+    } else {
+      sendProgress(progress, extraData);
+    }
+  }
+
+  void sendProgress(int progress, Bundle extraData) {
     if (mReceiver != null) {
       Bundle resultData = new Bundle();
       resultData.putInt(Groundy.PROGRESS, progress);
-      resultData.putSerializable(Groundy.TASK_IMPLEMENTATION, getClass());
       if (extraData != null) resultData.putAll(extraData);
       send(OnProgress.class, resultData);
     }
@@ -314,6 +386,50 @@ public abstract class GroundyTask {
     return false;
   }
 
+  /**
+   * Override this to limit how often progress updates of this task class are delivered. Useful
+   * for tasks that report progress in tight loops.
+   *
+   * @return the policy used to throttle progress updates
+   */
+  protected ProgressPolicy progressPolicy() {
+    return ProgressPolicy.NONE;
+  }
+
+  /**
+   * Override this to retry failed executions of this task class. A policy passed to {@link
+   * Groundy#retry(RetryPolicy)} takes precedence.
+   *
+   * @return the policy used to retry this task, or null to not retry it
+   */
+  protected RetryPolicy retryPolicy() {
+    return null;
+  }
+
+  /**
+   * Override this to limit how long each execution of this task class can take. When it expires
+   * the task is stopped with the {@link #TIMEOUT} reason and its thread is interrupted; whatever it
+   * returns afterwards is ignored. A timeout passed to {@link Groundy#timeout(long)} takes
+   * precedence.
+   *
+   * @return maximum execution time in milliseconds, or 0 for no limit
+   */
+  protected long timeout() {
+    return 0;
+  }
+
+  /**
+   * Called when an execution fails and the retry policy still allows more attempts.
+   *
+   * @param result the failed result
+   * @param error  the exception thrown by {@link #doInBackground()}, or null if it returned a
+   *               failed result
+   * @return true if the task must be retried; false to give up and deliver the failure right away
+   */
+  protected boolean shouldRetry(TaskResult result, Exception error) {
+    return true;
+  }
+
   /**
    * Override this if you want to cache the GroundyTask instance. Do it only if you are sure that
    * {@link GroundyTask#doInBackground()} method won't need a fresh instance each time they are
@@ -374,6 +490,9 @@ public abstract class GroundyTask {
         case CANCEL_BY_GROUP:
           toString += ", quittingReason=CANCEL_BY_GROUP";
           break;
+        case TIMEOUT:
+          toString += ", quittingReason=TIMEOUT";
+          break;
         default:
           toString += ", quittingReason=" + mQuittingReason;
       }
@@ -412,12 +531,13 @@ public abstract class GroundyTask {
   }
 
   void appendReceiver(ResultReceiver resultReceiver) {
-    if (mExtraReceivers == null) {
-      mExtraReceivers = new ArrayList<ResultReceiver>();
-    }
     mExtraReceivers.add(resultReceiver);
   }
 
+  void removeReceiver(ResultReceiver resultReceiver) {
+    mExtraReceivers.remove(resultReceiver);
+  }
+
   boolean alreadyExecuted() {
     return mExecuted;
   }
@@ -425,4 +545,127 @@ public abstract class GroundyTask {
   void flagAsExecuted() {
     mExecuted = true;
   }
+
+  void setCoalesceKey(CoalesceKey coalesceKey) {
+    mCoalesceKey = coalesceKey;
+  }
+
+  CoalesceKey getCoalesceKey() {
+    return mCoalesceKey;
+  }
+
+  void setStartTime(long startTime) {
+    mStartTime = startTime;
+  }
+
+  /** @return wall clock time before which this task must not run, or 0 */
+  long getStartTime() {
+    return mStartTime;
+  }
+
+  void setDelayedStart(TimerWheel.Timeout delayedStart) {
+    mDelayedStart = delayedStart;
+  }
+
+  /** @return true if there was a delayed start and it was cancelled before it went off */
+  boolean cancelDelayedStart() {
+    TimerWheel.Timeout delayedStart = mDelayedStart;
+    if (delayedStart != null) {
+      mDelayedStart = null;
+      return delayedStart.cancel();
+    }
+    return false;
+  }
+
+  void setRetryPolicy(RetryPolicy retryPolicy) {
+    mRetryPolicy = retryPolicy;
+  }
+
+  /** @return the policy set using {@link Groundy#retry(RetryPolicy)} or the task default */
+  RetryPolicy getRetryPolicy() {
+    return mRetryPolicy != null ? mRetryPolicy : retryPolicy();
+  }
+
+  void setAttempt(int attempt) {
+    mAttempt = attempt;
+  }
+
+  void setTimeout(long timeout) {
+    mTimeout = timeout;
+  }
+
+  /** @return the timeout set using {@link Groundy#timeout(long)} or the task default */
+  long getTimeout() {
+    return mTimeout > 0 ? mTimeout : timeout();
+  }
+
+  /** Sets the timer used to send throttled progress updates once their interval elapses. */
+  void setProgressTimer(TimerWheel progressTimer) {
+    mProgressTimer = progressTimer;
+    ProgressPolicy progressPolicy = progressPolicy();
+    if (progressPolicy != null && progressPolicy != ProgressPolicy.NONE) {
+      mProgressThrottle = new ProgressThrottle(this, progressPolicy, progressTimer);
+    }
+  }
+
+  /** Sends the pending progress update, if any, and ignores further ones. */
+  void closeProgress() {
+    ProgressThrottle progressThrottle = mProgressThrottle;
+    if (progressThrottle != null) {
+      progressThrottle.close();
+    }
+  }
+
+  void setPipeline(List<Class<? extends GroundyTask>> pipeline) {
+    mPipeline = pipeline;
+  }
+
+  void setStage(int stage) {
+    mStage = stage;
+  }
+
+  /** @return the task that must be executed after this one succeeds, or null */
+  Class<? extends GroundyTask> getNextStage() {
+    return mPipeline == null || mPipeline.isEmpty() ? null : mPipeline.get(0);
+  }
+
+  /**
+   * Makes this task the stage following the provided one. It takes over its id, callbacks and
+   * options, and gets the previous result as arguments.
+   */
+  void continueFrom(GroundyTask previous, Bundle previousResult) {
+    mId = previous.mId;
+    mStartId = previous.mStartId;
+    mGroupId = previous.mGroupId;
+    mPriority = previous.mPriority;
+    mRedelivered = previous.mRedelivered;
+    mSendsOriginalParams = previous.mSendsOriginalParams;
+    mStackTrace = previous.mStackTrace;
+    mIntent = previous.mIntent;
+    mReceiver = previous.mReceiver;
+    mExtraReceivers.addAll(previous.mExtraReceivers);
+    mRetryPolicy = previous.mRetryPolicy;
+    mTimeout = previous.mTimeout;
+    previous.closeProgress();
+    setProgressTimer(previous.mProgressTimer);
+    mPipeline = previous.mPipeline.subList(1, previous.mPipeline.size());
+    mStage = previous.mStage + 1;
+    // a cached instance may still hold the attempts of its last run
+    mAttempt = 1;
+    mExecuted = true;
+    addArgs(previousResult);
+  }
+
+  /**
+   * @return true if this is a retry or a pipeline stage; those are executed even if cancelled
+   *         before they start, so that they can notify the cancellation
+   */
+  boolean isFollowUp() {
+    return mAttempt > 1 || mStage > 0;
+  }
+
+  /** @return number of the current execution of this task; 1 unless it is being retried */
+  protected final int getAttempt() {
+    return mAttempt;
+  }
 }
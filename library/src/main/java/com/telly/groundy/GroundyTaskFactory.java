@@ -25,45 +25,66 @@ package com.telly.groundy;
 
 import android.content.Context;
 import java.lang.reflect.Constructor;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 final class GroundyTaskFactory {
   private static final String TAG = "GroundyTaskFactory";
 
   private static final Map<Class<? extends GroundyTask>, GroundyTask> CACHE =
-      new HashMap<Class<? extends GroundyTask>, GroundyTask>();
+      new ConcurrentHashMap<Class<? extends GroundyTask>, GroundyTask>();
+  private static final Map<Class<? extends GroundyTask>, Constructor<? extends GroundyTask>>
+      CONSTRUCTORS =
+      new ConcurrentHashMap<Class<? extends GroundyTask>, Constructor<? extends GroundyTask>>();
+  private static final GeneratedClasses<TaskFactory> GENERATED_FACTORIES =
+      new GeneratedClasses<TaskFactory>(TaskFactory.GENERATED_CLASS_NAME, TaskFactory.class);
 
   private GroundyTaskFactory() {
   }
 
   /**
-   * Builds a GroundyTask based on call.
+   * Builds a GroundyTask based on call. Tasks are created by the factory generated at compile time
+   * if possible; reflection is only used for classes it does not know.
    *
    * @param taskClass groundy value implementation class
    * @param context used to instantiate the value
    * @return An instance of a GroundyTask if a given call is valid null otherwise
    */
   static GroundyTask get(Class<? extends GroundyTask> taskClass, Context context) {
-    if (CACHE.containsKey(taskClass)) {
-      return CACHE.get(taskClass);
+    GroundyTask groundyTask = CACHE.get(taskClass);
+    if (groundyTask != null) {
+      return groundyTask;
     }
-    GroundyTask groundyTask = null;
     try {
-      L.d(TAG, "Instantiating " + taskClass);
-      Constructor ctc = taskClass.getConstructor();
-      groundyTask = (GroundyTask) ctc.newInstance();
-      if (groundyTask.canBeCached()) {
-        CACHE.put(taskClass, groundyTask);
-      } else if (CACHE.containsKey(taskClass)) {
-        CACHE.remove(taskClass);
+      TaskFactory factory = GENERATED_FACTORIES.forPackageOf(taskClass);
+      groundyTask = factory != null ? factory.newTask(taskClass) : null;
+      if (groundyTask == null) {
+        groundyTask = newInstance(taskClass);
       }
       groundyTask.setContext(context);
       groundyTask.onCreate();
+      if (groundyTask.canBeCached()) {
+        GroundyTask cached = CACHE.get(taskClass);
+        if (cached != null) {
+          // another thread got here first
+          return cached;
+        }
+        CACHE.put(taskClass, groundyTask);
+      }
       return groundyTask;
     } catch (Exception e) {
       L.e(TAG, "Unable to create value for call " + taskClass, e);
     }
-    return groundyTask;
+    return null;
+  }
+
+  private static GroundyTask newInstance(Class<? extends GroundyTask> taskClass) throws Exception {
+    Constructor<? extends GroundyTask> constructor = CONSTRUCTORS.get(taskClass);
+    if (constructor == null) {
+      L.d(TAG, "Instantiating " + taskClass + " using reflection");
+      constructor = taskClass.getConstructor();
+      CONSTRUCTORS.put(taskClass, constructor);
+    }
+    return constructor.newInstance();
   }
 }
@@ -0,0 +1,194 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.os.SystemClock;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Bounded pool of worker threads used by {@link GroundyService} to execute tasks. Threads are
+ * created on demand up to a maximum, reused while there is pending work and allowed to die after
+ * being idle for a while; so a burst of tasks does not leave a bunch of threads behind.
+ */
+class GroundyWorkerPool {
+  private final String mName;
+  private final int mMaxThreads;
+  private final long mKeepAliveMillis;
+  private final Queue<Runnable> mQueue;
+  private final Set<Worker> mWorkers = new HashSet<Worker>();
+  private int mIdleWorkers;
+  private int mCreatedWorkers;
+  private boolean mShutdown;
+
+  /**
+   * @param name            used to name the worker threads
+   * @param maxThreads      maximum amount of threads running at the same time
+   * @param keepAliveMillis time an idle thread waits for new work before dying
+   * @param queue           holds the pending work; its ordering decides what runs next
+   */
+  GroundyWorkerPool(String name, int maxThreads, long keepAliveMillis, Queue<Runnable> queue) {
+    if (maxThreads <= 0) {
+      throw new IllegalArgumentException("Max threads must be greater than zero");
+    }
+    if (keepAliveMillis < 0) {
+      throw new IllegalArgumentException("Keep alive time cannot be negative");
+    }
+    mName = name;
+    mMaxThreads = maxThreads;
+    mKeepAliveMillis = keepAliveMillis;
+    mQueue = queue;
+  }
+
+  /**
+   * Schedules the runnable to be executed by one of the workers of this pool.
+   *
+   * @param runnable the work to do
+   * @return false if the pool was already shut down
+   */
+  synchronized boolean execute(Runnable runnable) {
+    if (mShutdown) {
+      return false;
+    }
+    mQueue.add(runnable);
+    if (mQueue.size() > mIdleWorkers && mWorkers.size() < mMaxThreads) {
+      startWorker();
+    } else {
+      notify();
+    }
+    return true;
+  }
+
+  /** Removes the work that has not been picked by any worker yet. */
+  synchronized void clear() {
+    mQueue.clear();
+  }
+
+  /** Drops pending work and lets every worker die once it finishes its current job. */
+  synchronized void shutdown() {
+    mShutdown = true;
+    mQueue.clear();
+    notifyAll();
+  }
+
+  /**
+   * Gives up on a job that got stuck: the worker running it is interrupted, no longer counts
+   * towards the maximum and a replacement takes care of the pending work. The stuck thread dies
+   * once the job returns. Nothing happens if the job already returned, since its worker might be
+   * running another one by now.
+   *
+   * @param runnable the job to abandon
+   * @return false if no worker of this pool is running the job
+   */
+  synchronized boolean abandon(Runnable runnable) {
+    Worker stuck = null;
+    for (Worker worker : mWorkers) {
+      if (worker.mCurrent == runnable) {
+        stuck = worker;
+        break;
+      }
+    }
+    if (stuck == null) {
+      return false;
+    }
+    stuck.interrupt();
+    mWorkers.remove(stuck);
+    if (!mShutdown && !mQueue.isEmpty()) {
+      startWorker();
+    }
+    return true;
+  }
+
+  private void startWorker() {
+    Worker worker = new Worker(mName + "-" + (++mCreatedWorkers));
+    mWorkers.add(worker);
+    worker.start();
+  }
+
+  private synchronized Runnable next(Worker worker) {
+    worker.mCurrent = null;
+    // clear the interrupted status left by a stopped job, if any; it can't be interrupted anymore
+    Thread.interrupted();
+    if (!mWorkers.contains(worker)) {
+      // abandoned while running its last job
+      return null;
+    }
+    long deadline = now() + mKeepAliveMillis;
+    while (mQueue.isEmpty() && !mShutdown) {
+      long remaining = deadline - now();
+      if (remaining <= 0) {
+        break;
+      }
+      mIdleWorkers++;
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        // a worker is only interrupted to stop its current job; keep waiting for more work
+      } finally {
+        mIdleWorkers--;
+      }
+    }
+
+    Runnable runnable = mShutdown ? null : mQueue.poll();
+    if (runnable == null) {
+      mWorkers.remove(worker);
+    }
+    worker.mCurrent = runnable;
+    return runnable;
+  }
+
+  /** Clock used to measure how long a worker has been idle. */
+  long now() {
+    return SystemClock.uptimeMillis();
+  }
+
+  private synchronized void onWorkerDied(Worker worker) {
+    if (mWorkers.remove(worker) && !mShutdown && !mQueue.isEmpty()) {
+      // worker died because of an uncaught exception; make sure pending work still runs
+      startWorker();
+    }
+  }
+
+  private final class Worker extends Thread {
+    /** Job being run, guarded by the pool lock. */
+    private Runnable mCurrent;
+
+    Worker(String name) {
+      super(name);
+    }
+
+    @Override
+    public void run() {
+      try {
+        Runnable runnable;
+        while ((runnable = next(this)) != null) {
+          runnable.run();
+        }
+      } finally {
+        onWorkerDied(this);
+      }
+    }
+  }
+}
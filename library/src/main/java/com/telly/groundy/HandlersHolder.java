@@ -24,7 +24,6 @@
 package com.telly.groundy;
 
 import android.os.Bundle;
-import java.lang.annotation.Annotation;
 
 /** Interface to implement by classes that hold callback handlers. */
 interface HandlersHolder {
@@ -35,5 +34,9 @@ interface HandlersHolder {
   void removeCallbackHandlers(Class<? extends GroundyTask> groundyTaskClass,
       Object... callbackHandlers);
 
-  void handleCallback(Class<? extends Annotation> callbackAnnotation, Bundle resultData);
+  /**
+   * @param callbackKind one of the {@link CallbackKind} codes
+   * @param resultData the data sent by the task
+   */
+  void handleCallback(int callbackKind, Bundle resultData);
 }
@@ -0,0 +1,359 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A block of bytes too big to travel inside a Bundle, like a decoded image or a parsed payload.
+ * Add it to a {@link TaskResult} or to the extras of a progress or custom callback, and declare a
+ * {@code LargeValue} parameter in the callback method. It can be used as a task argument too, see
+ * {@link Groundy#arg(String, LargeValue)}.
+ * <p/>
+ * While the value stays in the same process only its reference is passed around. When it has to
+ * cross Binder and is bigger than {@link #INLINE_LIMIT}, its bytes are written once to a file in
+ * the cache dir of the service, which is unlinked right away, and only the file descriptor is sent.
+ * The receiving side maps it read-only instead of copying it. The system frees the file once every
+ * descriptor and mapping of it is gone, even if a process dies before reading it.
+ * <p/>
+ * Intents can't carry file descriptors, so arguments sent to a service in another process are
+ * written once to a named file instead, and only its name is sent; every copy of the intent, like
+ * the ones redelivered or kept in the task journal, refers to the same file. The service deletes
+ * it once the task finishes. Files left behind by a process that died before that are deleted
+ * after a day.
+ */
+public final class LargeValue implements Parcelable {
+  /** Values up to this many bytes are sent as a plain byte array. */
+  public static final int INLINE_LIMIT = 64 * 1024;
+
+  private static final String TAG = "LargeValue";
+  private static final String DIRECTORY = "groundy_large_values";
+  private static final long ORPHAN_AGE = 24 * 60 * 60 * 1000;
+  private static final byte INLINE = 0;
+  private static final byte DESCRIPTOR = 1;
+  private static final byte FILE_NAME = 2;
+  private static volatile File sSpillDirectory;
+
+  private final int mLength;
+  // the bytes, if this value was created in this process or was sent inline
+  private byte[] mBytes;
+  // the file holding the bytes, once they had to be written
+  private ParcelFileDescriptor mFile;
+  private ByteBuffer mBuffer;
+  // true if it is sent in intents, which can't carry file descriptors
+  private boolean mSendAsFileName;
+  // the named file it is sent as, once written or received
+  private File mNamedFile;
+
+  private LargeValue(int length, byte[] bytes, ParcelFileDescriptor file) {
+    mLength = length;
+    mBytes = bytes;
+    mFile = file;
+  }
+
+  /**
+   * @param bytes the bytes to send; they must not be modified afterwards
+   * @return a value holding the provided bytes
+   */
+  public static LargeValue of(byte[] bytes) {
+    if (bytes == null) {
+      throw new IllegalArgumentException("bytes cannot be null");
+    }
+    return new LargeValue(bytes.length, bytes, null);
+  }
+
+  /** @return number of bytes of this value */
+  public int length() {
+    return mLength;
+  }
+
+  /**
+   * @return a read-only buffer with the bytes of this value. If they were received as a file, it is
+   *         mapped instead of read. The buffer keeps working after {@link #release()}
+   * @throws IOException if the file could not be mapped
+   */
+  public synchronized ByteBuffer asBuffer() throws IOException {
+    if (mBuffer == null) {
+      if (mBytes != null) {
+        mBuffer = ByteBuffer.wrap(mBytes).asReadOnlyBuffer();
+      } else if (mFile != null) {
+        // the stream does not own the descriptor, so it must not be closed
+        FileChannel channel = new FileInputStream(mFile.getFileDescriptor()).getChannel();
+        mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+      } else {
+        throw new IOException("The bytes of this value are no longer available");
+      }
+    }
+    return mBuffer.duplicate();
+  }
+
+  /**
+   * @return a copy of the bytes of this value
+   * @throws IOException if the file holding them could not be mapped
+   */
+  public byte[] toByteArray() throws IOException {
+    byte[] bytes = new byte[mLength];
+    asBuffer().get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Closes the file descriptor of this value now, instead of when it is garbage collected. Buffers
+   * already returned by {@link #asBuffer()} keep working.
+   */
+  public synchronized void release() {
+    if (mFile != null) {
+      try {
+        mFile.close();
+      } catch (IOException e) {
+        L.e(TAG, "Could not close the file of a large value", e);
+      }
+      mFile = null;
+    }
+  }
+
+  /**
+   * Sets up the directory large values sent from this process are written to. The first time, it
+   * deletes the files that were never read by the service they were sent to.
+   */
+  static void setUp(Context context) {
+    if (sSpillDirectory != null) {
+      return;
+    }
+    synchronized (LargeValue.class) {
+      if (sSpillDirectory != null) {
+        return;
+      }
+      File directory = new File(context.getCacheDir(), DIRECTORY);
+      File[] files = directory.listFiles();
+      if (files != null) {
+        long oldest = System.currentTimeMillis() - ORPHAN_AGE;
+        for (File file : files) {
+          if (file.lastModified() < oldest && !file.delete()) {
+            L.e(TAG, "Could not delete " + file);
+          }
+        }
+      }
+      sSpillDirectory = directory;
+    }
+  }
+
+  /**
+   * Deletes the named files of the large values in the provided args. Values that are sent by name
+   * again afterwards get a new file.
+   */
+  static void deleteFiles(Bundle args) {
+    deleteFiles(args, null);
+  }
+
+  /**
+   * Like {@link #deleteFiles(Bundle)}, but leaves alone the files also used by the values in the
+   * args to keep; the same value sent twice is sent by the same name.
+   */
+  static void deleteFiles(Bundle args, Bundle keep) {
+    if (args == null) {
+      return;
+    }
+    Set<File> kept = new HashSet<File>();
+    if (keep != null) {
+      for (String key : keep.keySet()) {
+        Object value = keep.get(key);
+        File file = value instanceof LargeValue ? ((LargeValue) value).getNamedFile() : null;
+        if (file != null) {
+          kept.add(file);
+        }
+      }
+    }
+    for (String key : args.keySet()) {
+      Object value = args.get(key);
+      if (value instanceof LargeValue) {
+        ((LargeValue) value).deleteNamedFile(kept);
+      }
+    }
+  }
+
+  private synchronized File getNamedFile() {
+    return mNamedFile;
+  }
+
+  private synchronized void deleteNamedFile(Set<File> kept) {
+    if (mNamedFile != null && !kept.contains(mNamedFile)) {
+      delete(mNamedFile);
+      mNamedFile = null;
+    }
+  }
+
+  /** Makes this value be written to a file that is sent by name, since it goes in an intent. */
+  synchronized void sendAsFileName() {
+    mSendAsFileName = true;
+  }
+
+  /**
+   * Writes the bytes to an unlinked file the first time they have to be sent. All receivers share
+   * the file, each one with its own descriptor.
+   *
+   * @return the file, or null if the bytes must be sent inline
+   */
+  private ParcelFileDescriptor spill() {
+    if (mFile != null || mBytes == null || mLength <= INLINE_LIMIT) {
+      return mFile;
+    }
+    File file = writeFile();
+    if (file != null) {
+      try {
+        mFile = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+      } catch (FileNotFoundException e) {
+        L.e(TAG, "Could not open " + file + "; sending it inline", e);
+      }
+      delete(file);
+    }
+    return mFile;
+  }
+
+  /** @return a new file holding the bytes of this value, or null if it could not be written */
+  private File writeFile() {
+    File directory = sSpillDirectory;
+    if (directory == null) {
+      L.e(TAG, "No directory to write large values to; sending it inline");
+      return null;
+    }
+    File file = null;
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Could not create " + directory);
+      }
+      file = File.createTempFile("large", null, directory);
+      FileOutputStream output = new FileOutputStream(file);
+      try {
+        output.getChannel().write(asBuffer());
+      } finally {
+        output.close();
+      }
+      return file;
+    } catch (IOException e) {
+      L.e(TAG, "Could not write a large value to a file; sending it inline", e);
+      if (file != null) {
+        delete(file);
+      }
+      return null;
+    }
+  }
+
+  private static void delete(File file) {
+    if (!file.delete()) {
+      L.e(TAG, "Could not delete " + file);
+    }
+  }
+
+  /** @return the named file holding the bytes, written the first time; null to send them inline */
+  private File namedFile() {
+    if (mNamedFile == null || !mNamedFile.exists()) {
+      mNamedFile = writeFile();
+    }
+    return mNamedFile;
+  }
+
+  /** Opens a file sent by name. It stays there, since the same name can be read again. */
+  private static ParcelFileDescriptor open(File file) {
+    try {
+      return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    } catch (FileNotFoundException e) {
+      L.e(TAG, "The file of a large value is gone: " + file, e);
+      return null;
+    }
+  }
+
+  @SuppressWarnings("UnusedDeclaration")
+  public static final Creator<LargeValue> CREATOR = new Creator<LargeValue>() {
+    @Override public LargeValue createFromParcel(Parcel source) {
+      int length = source.readInt();
+      switch (source.readByte()) {
+        case DESCRIPTOR:
+          return new LargeValue(length, null,
+              ParcelFileDescriptor.CREATOR.createFromParcel(source));
+        case FILE_NAME:
+          File file = new File(source.readString());
+          LargeValue value = new LargeValue(length, null, open(file));
+          // it is an argument, so it can be sent in an intent again; by the same name
+          value.mSendAsFileName = true;
+          value.mNamedFile = file;
+          return value;
+        default:
+          return new LargeValue(length, source.createByteArray(), null);
+      }
+    }
+
+    @Override public LargeValue[] newArray(int size) {
+      return new LargeValue[size];
+    }
+  };
+
+  @Override public synchronized int describeContents() {
+    boolean sentAsDescriptor = !mSendAsFileName && (mFile != null
+        || (mBytes != null && mLength > INLINE_LIMIT && sSpillDirectory != null));
+    return sentAsDescriptor ? CONTENTS_FILE_DESCRIPTOR : 0;
+  }
+
+  @Override public synchronized void writeToParcel(Parcel dest, int flags) {
+    dest.writeInt(mLength);
+    if (mSendAsFileName) {
+      File file = mLength > INLINE_LIMIT ? namedFile() : null;
+      if (file != null) {
+        dest.writeByte(FILE_NAME);
+        dest.writeString(file.getPath());
+        return;
+      }
+    }
+    ParcelFileDescriptor file = mSendAsFileName ? null : spill();
+    if (file != null) {
+      dest.writeByte(DESCRIPTOR);
+      file.writeToParcel(dest, 0);
+    } else {
+      dest.writeByte(INLINE);
+      try {
+        dest.writeByteArray(mBytes != null ? mBytes : toByteArray());
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not read a large value to send it: " + e);
+      }
+    }
+  }
+
+  @Override public String toString() {
+    return "LargeValue{length=" + mLength + ", inFile=" + (mFile != null) + '}';
+  }
+}
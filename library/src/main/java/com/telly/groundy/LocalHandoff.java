@@ -0,0 +1,167 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Bundle;
+import android.os.Process;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands tasks to a service running in the same process without marshalling them. The extras of
+ * the tasks stay in memory and the intent sent to the service only carries the id to claim them
+ * with. Since they are never parceled, receivers are passed as they are and callbacks don't go
+ * through Binder either.
+ */
+final class LocalHandoff {
+  private static final String TAG = "groundy:handoff";
+  static final String KEY_HANDOFF_ID = "com.telly.groundy.key.HANDOFF_ID";
+
+  private static final AtomicLong NEXT_ID = new AtomicLong(1);
+  private static final Map<Long, List<Bundle>> PENDING =
+      new ConcurrentHashMap<Long, List<Bundle>>();
+  private static final Map<Class<?>, Boolean> AVAILABLE =
+      new ConcurrentHashMap<Class<?>, Boolean>();
+  private static volatile String sProcessName;
+
+  private LocalHandoff() {
+  }
+
+  /**
+   * @return an intent that makes the service run the tasks with the provided extras, or null if
+   *         the service runs in a different process and they must be sent the usual way
+   */
+  static Intent newIntent(Context context, Class<? extends GroundyService> groundyClass,
+      List<Bundle> extras, boolean async) {
+    if (!isAvailable(context, groundyClass)) {
+      return null;
+    }
+    long handoffId = NEXT_ID.getAndIncrement();
+    PENDING.put(handoffId, extras);
+    Intent intent = new Intent(context, groundyClass);
+    intent.setAction(
+        async ? GroundyService.ACTION_EXECUTE_BATCH : GroundyService.ACTION_QUEUE_BATCH);
+    intent.putExtra(KEY_HANDOFF_ID, handoffId);
+    return intent;
+  }
+
+  /**
+   * Starts the service with the provided intent. If it can't be started, the extras handed off
+   * with the intent are dropped, since no one will ever claim them.
+   */
+  static void startService(Context context, Intent intent) {
+    boolean started = false;
+    try {
+      started = context.startService(intent) != null;
+    } finally {
+      if (!started) {
+        discard(intent);
+      }
+    }
+  }
+
+  private static void discard(Intent intent) {
+    long handoffId = intent.getLongExtra(KEY_HANDOFF_ID, 0);
+    if (handoffId != 0) {
+      PENDING.remove(handoffId);
+    }
+  }
+
+  /** @return the extras handed off with the intent, or null if it is not a handoff intent */
+  static List<Bundle> claim(Intent intent) {
+    long handoffId = intent.getLongExtra(KEY_HANDOFF_ID, 0);
+    if (handoffId == 0) {
+      return null;
+    }
+    List<Bundle> extras = PENDING.remove(handoffId);
+    if (extras == null) {
+      // the intent outlived the process that handed the tasks off
+      L.e(TAG, "Tasks of handoff " + handoffId + " are gone");
+    }
+    return extras;
+  }
+
+  /**
+   * Tasks can be handed off if the service runs in this process and doesn't depend on its intents
+   * being redelivered, which would be useless after the process dies.
+   */
+  private static boolean isAvailable(Context context,
+      Class<? extends GroundyService> groundyClass) {
+    Boolean available = AVAILABLE.get(groundyClass);
+    if (available == null) {
+      available = checkAvailable(context, groundyClass);
+      AVAILABLE.put(groundyClass, available);
+    }
+    return available;
+  }
+
+  private static boolean checkAvailable(Context context,
+      Class<? extends GroundyService> groundyClass) {
+    ServiceInfo info;
+    try {
+      PackageManager pm = context.getPackageManager();
+      ComponentName component = new ComponentName(context, groundyClass);
+      info = pm.getServiceInfo(component, PackageManager.GET_META_DATA);
+    } catch (PackageManager.NameNotFoundException e) {
+      return false;
+    }
+    if (info == null || info.processName == null
+        || !info.processName.equals(getProcessName(context))) {
+      return false;
+    }
+
+    Bundle metaData = info.metaData;
+    return metaData == null
+        || !metaData.getBoolean(GroundyService.KEY_FORCE_QUEUE_COMPLETION, false)
+        || metaData.getBoolean(GroundyService.KEY_JOURNAL, false);
+  }
+
+  private static String getProcessName(Context context) {
+    if (sProcessName == null) {
+      ActivityManager activityManager =
+          (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+      List<ActivityManager.RunningAppProcessInfo> processes =
+          activityManager == null ? null : activityManager.getRunningAppProcesses();
+      if (processes != null) {
+        int pid = Process.myPid();
+        for (ActivityManager.RunningAppProcessInfo process : processes) {
+          if (process.pid == pid) {
+            sProcessName = process.processName;
+            break;
+          }
+        }
+      }
+    }
+    return sProcessName;
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+/**
+ * Limits how often progress updates are delivered. An update is sent right away only if the
+ * minimum interval elapsed since the last one and the progress changed at least by the minimum
+ * delta; otherwise it replaces any update still waiting, so that only the latest one is sent.
+ * Waiting updates go out once the interval elapses (if their delta is big enough) and, in any
+ * case, right before the task finishes, so the last reported value always gets delivered.
+ *
+ * @see GroundyTask#progressPolicy()
+ */
+public final class ProgressPolicy {
+  /** Delivers every update as soon as it is reported. */
+  public static final ProgressPolicy NONE = new ProgressPolicy(0, 0);
+
+  private final long mMinInterval;
+  private final int mMinDelta;
+
+  /**
+   * @param minIntervalMillis minimum time between two delivered updates
+   * @param minDelta          minimum difference between two delivered progress values
+   */
+  public ProgressPolicy(long minIntervalMillis, int minDelta) {
+    if (minIntervalMillis < 0) {
+      throw new IllegalArgumentException("Min interval cannot be negative");
+    }
+    if (minDelta < 0) {
+      throw new IllegalArgumentException("Min delta cannot be negative");
+    }
+    mMinInterval = minIntervalMillis;
+    mMinDelta = minDelta;
+  }
+
+  public long getMinInterval() {
+    return mMinInterval;
+  }
+
+  public int getMinDelta() {
+    return mMinDelta;
+  }
+
+  @Override public String toString() {
+    return "ProgressPolicy{minInterval=" + mMinInterval + ", minDelta=" + mMinDelta + '}';
+  }
+}
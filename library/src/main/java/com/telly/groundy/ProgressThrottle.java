@@ -0,0 +1,117 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+/**
+ * Enforces the {@link ProgressPolicy} of a task. Updates that can't be sent yet collapse into a
+ * single pending one, which is sent when the interval elapses or when the throttle is closed.
+ */
+final class ProgressThrottle {
+  private final GroundyTask mTask;
+  private final ProgressPolicy mPolicy;
+  private final TimerWheel mTimer;
+  private final Runnable mIntervalElapsed = new Runnable() {
+    @Override public void run() {
+      onIntervalElapsed();
+    }
+  };
+
+  private boolean mSentAny;
+  private int mLastProgress;
+  private long mLastSendTime;
+  private boolean mHasPending;
+  private int mPendingProgress;
+  private Bundle mPendingExtras;
+  private TimerWheel.Timeout mPendingSend;
+  private boolean mClosed;
+
+  /**
+   * @param timer used to send pending updates once the interval elapses; if null they wait for
+   *              the next update or for the throttle to be closed
+   */
+  ProgressThrottle(GroundyTask task, ProgressPolicy policy, TimerWheel timer) {
+    mTask = task;
+    mPolicy = policy;
+    mTimer = timer;
+  }
+
+  synchronized void update(int progress, Bundle extraData) {
+    if (mClosed) {
+      return;
+    }
+
+    long now = SystemClock.elapsedRealtime();
+    long wait = mSentAny ? mLastSendTime + mPolicy.getMinInterval() - now : 0;
+    if (wait <= 0 && changedEnough(progress)) {
+      send(progress, extraData, now);
+      return;
+    }
+
+    mHasPending = true;
+    mPendingProgress = progress;
+    mPendingExtras = extraData;
+    if (wait > 0 && mPendingSend == null && mTimer != null) {
+      mPendingSend = mTimer.schedule(mIntervalElapsed, wait);
+    }
+  }
+
+  /** Sends the pending update, if any, and ignores the ones reported afterwards. */
+  synchronized void close() {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    if (mPendingSend != null) {
+      mPendingSend.cancel();
+      mPendingSend = null;
+    }
+    if (mHasPending) {
+      send(mPendingProgress, mPendingExtras, SystemClock.elapsedRealtime());
+    }
+  }
+
+  private synchronized void onIntervalElapsed() {
+    mPendingSend = null;
+    if (!mClosed && mHasPending && changedEnough(mPendingProgress)) {
+      send(mPendingProgress, mPendingExtras, SystemClock.elapsedRealtime());
+    }
+  }
+
+  private boolean changedEnough(int progress) {
+    return !mSentAny || Math.abs(progress - mLastProgress) >= mPolicy.getMinDelta();
+  }
+
+  private void send(int progress, Bundle extraData, long now) {
+    mHasPending = false;
+    mPendingExtras = null;
+    mSentAny = true;
+    mLastProgress = progress;
+    mLastSendTime = now;
+    mTask.sendProgress(progress, extraData);
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+/**
+ * Looks up the proxies generated for callback handlers. The groundy compiler creates an
+ * implementation in every package with handlers, listing the proxies of those handlers; there is
+ * no need to implement it manually.
+ */
+public interface ProxyRegistry {
+  /** Simple name of the class generated by the groundy compiler in every package. */
+  String GENERATED_CLASS_NAME = "GroundyProxies";
+
+  /**
+   * @param handlerType class of the callback handler
+   * @param taskType    class of the task whose callbacks are delivered
+   * @return a proxy for the given pair, or null if none was generated
+   */
+  ResultProxy getProxy(Class<?> handlerType, Class<?> taskType);
+}
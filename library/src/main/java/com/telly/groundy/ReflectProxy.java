@@ -36,34 +36,51 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Applies callbacks using reflection. Everything that can be known in advance (the methods of
+ * each callback kind, how to read and convert each parameter) is resolved once when the proxy is
+ * created, so applying a callback is just a few lookups and the invocation itself.
+ */
 class ReflectProxy implements ResultProxy {
 
-  private static final Class<?>[] GROUNDY_CALLBACKS = {
-      OnStart.class, OnSuccess.class, OnFailure.class, OnCancel.class, OnProgress.class,
-      OnCallback.class
-  };
-  private static final Map<Class<?>, Method[]> METHODS_CACHE = new HashMap<Class<?>, Method[]>();
+  private static final ConcurrentHashMap<Class<?>, Method[]> METHODS_CACHE =
+      new ConcurrentHashMap<Class<?>, Method[]>();
+  private static final MethodSpec[] NO_METHODS = new MethodSpec[0];
 
-  private final Map<Class<? extends Annotation>, List<MethodSpec>> callbacksMap;
+  // method specs indexed by callback kind; never modified after the constructor
+  private final MethodSpec[][] mCallbacks;
   private final Class<? extends GroundyTask> mTaskType;
   private final Class<?> mHandlerType;
+  private final boolean mUsesOriginalParams;
 
   ReflectProxy(Class<? extends GroundyTask> groundyTaskType, Class<?> handlerType) {
     mTaskType = groundyTaskType;
     mHandlerType = handlerType;
-    callbacksMap = new HashMap<Class<? extends Annotation>, List<MethodSpec>>();
 
-    fillMethodSpecMap();
+    List<List<MethodSpec>> callbacks = new ArrayList<List<MethodSpec>>();
+    for (int kind = 0; CallbackKind.annotationOf(kind) != null; kind++) {
+      callbacks.add(new ArrayList<MethodSpec>());
+    }
+    fillMethodSpecs(callbacks);
+
+    mCallbacks = new MethodSpec[callbacks.size()][];
+    for (int kind = 0; kind < mCallbacks.length; kind++) {
+      List<MethodSpec> kindCallbacks = callbacks.get(kind);
+      mCallbacks[kind] = kindCallbacks.isEmpty() ? NO_METHODS
+          : kindCallbacks.toArray(new MethodSpec[kindCallbacks.size()]);
+    }
+    mUsesOriginalParams = usesParam(mCallbacks, Groundy.ORIGINAL_PARAMS);
   }
 
-  @Override public void apply(Object target, Class<? extends Annotation> callbackAnnotation,
-      Bundle resultData) {
-    List<MethodSpec> methodSpecs = callbacksMap.get(callbackAnnotation);
-    if (methodSpecs == null || methodSpecs.isEmpty()) {
+  @Override public void apply(Object target, int callbackKind, Bundle resultData) {
+    if (callbackKind < 0 || callbackKind >= mCallbacks.length) {
+      return;
+    }
+    MethodSpec[] methodSpecs = mCallbacks[callbackKind];
+    if (methodSpecs.length == 0) {
       return;
     }
 
@@ -74,7 +91,7 @@ class ReflectProxy implements ResultProxy {
         // ignore method specs whose callback is not the same that is being applied right now
         continue;
       }
-      Object[] values = getResultParams(resultData, methodSpec);
+      Object[] values = methodSpec.getResultParams(resultData);
       try {
         methodSpec.method.invoke(target, values);
       } catch (Exception pokemon) {
@@ -83,10 +100,27 @@ class ReflectProxy implements ResultProxy {
     }
   }
 
-  private void fillMethodSpecMap() {
+  @Override public boolean usesOriginalParams() {
+    return mUsesOriginalParams;
+  }
+
+  private static boolean usesParam(MethodSpec[][] callbacks, String key) {
+    for (MethodSpec[] methodSpecs : callbacks) {
+      for (MethodSpec methodSpec : methodSpecs) {
+        for (ParamSpec param : methodSpec.params) {
+          if (param.key.equals(key)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private void fillMethodSpecs(List<List<MethodSpec>> callbacks) {
     Class<?> type = mHandlerType;
     while (type != Object.class) {
-      fillMethodSpecMapWith(type);
+      fillMethodSpecsWith(type, callbacks);
       if (!mTaskType.isAnnotationPresent(Traverse.class)) {
         // traverse class hierarchy when @Traverse annotation is present only
         break;
@@ -95,26 +129,27 @@ class ReflectProxy implements ResultProxy {
     }
   }
 
-  private void fillMethodSpecMapWith(Class<?> type) {
+  private void fillMethodSpecsWith(Class<?> type, List<List<MethodSpec>> callbacks) {
     for (Method method : getMethods(type)) {
       // register groundy callbacks
-      for (Class<?> groundyCallback : GROUNDY_CALLBACKS) {
-        //noinspection unchecked
-        Class<? extends Annotation> annotation = (Class<? extends Annotation>) groundyCallback;
-        appendMethodCallback(mTaskType, annotation, method);
+      for (int kind = 0; kind < callbacks.size(); kind++) {
+        appendMethodCallback(mTaskType, CallbackKind.annotationOf(kind), method,
+            callbacks.get(kind));
       }
     }
   }
 
   private static Method[] getMethods(Class<?> type) {
-    if (!METHODS_CACHE.containsKey(type)) {
-      METHODS_CACHE.put(type, type.getMethods());
+    Method[] methods = METHODS_CACHE.get(type);
+    if (methods == null) {
+      methods = type.getMethods();
+      METHODS_CACHE.putIfAbsent(type, methods);
     }
-    return METHODS_CACHE.get(type);
+    return methods;
   }
 
-  private void appendMethodCallback(Class<? extends GroundyTask> taskType,
-      Class<? extends Annotation> phaseAnnotation, Method method) {
+  private static void appendMethodCallback(Class<? extends GroundyTask> taskType,
+      Class<? extends Annotation> phaseAnnotation, Method method, List<MethodSpec> methodSpecs) {
     Annotation methodAnnotation = method.getAnnotation(phaseAnnotation);
     if (methodAnnotation == null || !isValid(taskType, methodAnnotation)) {
       return;
@@ -129,8 +164,9 @@ class ReflectProxy implements ResultProxy {
       throw new IllegalStateException("Callback methods must return void");
     }
 
-    List<String> paramNames = new ArrayList<String>();
+    Class<?>[] parameterTypes = method.getParameterTypes();
     Annotation[][] paramAnnotations = method.getParameterAnnotations();
+    ParamSpec[] params = new ParamSpec[paramAnnotations.length];
     for (int i = 0; i < paramAnnotations.length; i++) {
       Annotation[] paramAnnotation = paramAnnotations[i];
       Param param = null;
@@ -145,16 +181,7 @@ class ReflectProxy implements ResultProxy {
         throw new IllegalStateException("All parameters must be annotated with @Param. " + method +
             ", param " + i + " doesn't");
       }
-      paramNames.add(param.value());
-    }
-
-    Class<? extends Annotation> annotationType = methodAnnotation.annotationType();
-    List<MethodSpec> methodSpecs;
-    if (callbacksMap.containsKey(annotationType)) {
-      methodSpecs = callbacksMap.get(annotationType);
-    } else {
-      methodSpecs = new ArrayList<MethodSpec>();
-      callbacksMap.put(annotationType, methodSpecs);
+      params[i] = new ParamSpec(param.value(), parameterTypes[i]);
     }
 
     String name = null; // used only for @OnCallback annotations
@@ -165,10 +192,10 @@ class ReflectProxy implements ResultProxy {
         throw new NullPointerException("@OnCallback's name cannot be null");
       }
     }
-    methodSpecs.add(new MethodSpec(method, paramNames, name));
+    methodSpecs.add(new MethodSpec(method, params, name));
   }
 
-  private boolean isValid(Class<? extends GroundyTask> groundyTaskType,
+  private static boolean isValid(Class<? extends GroundyTask> groundyTaskType,
       Annotation methodAnnotation) {
 
     if (methodAnnotation instanceof OnSuccess) {
@@ -193,104 +220,151 @@ class ReflectProxy implements ResultProxy {
     return true;
   }
 
-  private boolean isValid(Class<?> groundyTaskType, Class<? extends GroundyTask>[] tasks) {
+  private static boolean isValid(Class<?> groundyTaskType, Class<? extends GroundyTask>[] tasks) {
     for (Class<? extends GroundyTask> task : tasks) {
       if (task.isAssignableFrom(groundyTaskType)) return true;
     }
     return false;
   }
 
-  private static Object[] getResultParams(Bundle resultData, MethodSpec methodSpec) {
-    Method method = methodSpec.method;
+  @Override public String toString() {
+    return "ReflectProxy{" +
+        "groundyTaskType=" + mTaskType +
+        ", handlerType=" + mHandlerType +
+        '}';
+  }
 
-    Object[] values = new Object[methodSpec.paramNames.size()];
-    Class<?>[] parameterTypes = method.getParameterTypes();
+  static class MethodSpec {
+    final Method method;
+    final ParamSpec[] params;
+    final String name;
 
-    List<String> paramNames = methodSpec.paramNames;
-    for (int i = 0; i < paramNames.size(); i++) {
-      Class<?> parameterType = parameterTypes[i];
-      String paramName = paramNames.get(i);
-      values[i] = resultData.get(paramName);
-      if (values[i] == null) {
-        values[i] = defaultValue(parameterType);
-      } else {
-        if (!isTypeValid(parameterType, values[i].getClass())) {
-          throw new RuntimeException(paramName
-              + " parameter is "
-              + values[i].getClass().getSimpleName()
-              + " but the method ("
-              + method
-              + ") expects "
-              + parameterType.getSimpleName());
-        }
+    MethodSpec(Method m, ParamSpec[] methodParams, String customName) {
+      method = m;
+      params = methodParams;
+      name = customName;
+      // skips the access checks on every invocation
+      method.setAccessible(true);
+    }
+
+    Object[] getResultParams(Bundle resultData) {
+      Object[] values = new Object[params.length];
+      for (int i = 0; i < params.length; i++) {
+        values[i] = params[i].extract(resultData, method);
       }
+      return values;
     }
-    return values;
   }
 
-  private static boolean isTypeValid(Class<?> expected, Class<?> actual) {
-    if (expected == Double.class || expected == double.class) {
-      return isAnyOf(actual, long.class, Long.class, int.class, Integer.class, double.class,
-          Double.class, float.class, Float.class);
-    } else if (expected == Float.class || expected == float.class) {
-      return isAnyOf(actual, int.class, Integer.class, float.class, Float.class);
-    } else if (expected == Long.class || expected == long.class) {
-      return isAnyOf(actual, int.class, Integer.class, Long.class, long.class);
-    } else if (expected == Integer.class || expected == int.class) {
-      return isAnyOf(actual, int.class, Integer.class);
-    } else if (expected == Boolean.class || expected == boolean.class) {
-      return isAnyOf(actual, boolean.class, Boolean.class);
+  /** Knows how to read a parameter from the result data and convert it to the declared type. */
+  static class ParamSpec {
+    private static final Class<?>[] DOUBLE_SOURCES = {
+        Double.class, Long.class, Integer.class, Float.class
+    };
+    private static final Class<?>[] FLOAT_SOURCES = {Float.class, Integer.class};
+    private static final Class<?>[] LONG_SOURCES = {Long.class, Integer.class};
+    private static final Class<?>[] INTEGER_SOURCES = {Integer.class};
+    private static final Class<?>[] BOOLEAN_SOURCES = {Boolean.class};
+
+    final String key;
+    final Class<?> type;
+    // value used when the result has no value for the key
+    private final Object mDefaultValue;
+    // exact classes of the values that can be converted; null if any subtype is valid
+    private final Class<?>[] mSources;
+
+    ParamSpec(String paramKey, Class<?> paramType) {
+      key = paramKey;
+      type = paramType;
+      mDefaultValue = defaultValue(paramType);
+      mSources = sourcesOf(paramType);
     }
-    return expected.isAssignableFrom(actual);
-  }
 
-  private static boolean isAnyOf(Class<?> foo, Class<?>... bars) {
-    for (Class<?> bar : bars) {
-      if (foo == bar) {
-        return true;
+    Object extract(Bundle resultData, Method method) {
+      Object value = resultData.get(key);
+      if (value == null) {
+        return mDefaultValue;
       }
+
+      if (mSources == null) {
+        if (type.isInstance(value)) {
+          return value;
+        }
+      } else {
+        Class<?> valueType = value.getClass();
+        for (Class<?> source : mSources) {
+          if (valueType == source) {
+            return convert(value);
+          }
+        }
+      }
+
+      throw new RuntimeException(key
+          + " parameter is "
+          + value.getClass().getSimpleName()
+          + " but the method ("
+          + method
+          + ") expects "
+          + type.getSimpleName());
     }
-    return false;
-  }
 
-  private static Object defaultValue(Class<?> parameterType) {
-    if (parameterType == int.class
-        || parameterType == Integer.class
-        || parameterType == float.class
-        || parameterType == Float.class
-        || parameterType == double.class
-        || parameterType == Double.class
-        || parameterType == long.class
-        || parameterType == Long.class
-        || parameterType == byte.class
-        || parameterType == Byte.class
-        || parameterType == char.class
-        || parameterType == Character.class
-        || parameterType == short.class
-        || parameterType == Short.class) {
-      return 0;
-    } else if (parameterType == boolean.class || parameterType == Boolean.class) {
-      return false;
+    private Object convert(Object value) {
+      // primitive params are widened by the invocation itself
+      if (type == Double.class && !(value instanceof Double)) {
+        return ((Number) value).doubleValue();
+      } else if (type == Float.class && !(value instanceof Float)) {
+        return ((Number) value).floatValue();
+      } else if (type == Long.class && !(value instanceof Long)) {
+        return ((Number) value).longValue();
+      }
+      return value;
     }
-    return null;
-  }
 
-  @Override public String toString() {
-    return "ReflectProxy{" +
-        "groundyTaskType=" + mTaskType +
-        ", handlerType=" + mHandlerType +
-        '}';
-  }
+    private static Class<?>[] sourcesOf(Class<?> type) {
+      if (type == Double.class || type == double.class) {
+        return DOUBLE_SOURCES;
+      } else if (type == Float.class || type == float.class) {
+        return FLOAT_SOURCES;
+      } else if (type == Long.class || type == long.class) {
+        return LONG_SOURCES;
+      } else if (type == Integer.class || type == int.class) {
+        return INTEGER_SOURCES;
+      } else if (type == Boolean.class || type == boolean.class) {
+        return BOOLEAN_SOURCES;
+      } else if (type.isPrimitive()) {
+        return new Class<?>[] {boxed(type)};
+      }
+      return null;
+    }
 
-  static class MethodSpec {
-    final Method method;
-    final List<String> paramNames;
-    final String name;
+    private static Class<?> boxed(Class<?> type) {
+      if (type == byte.class) {
+        return Byte.class;
+      } else if (type == char.class) {
+        return Character.class;
+      }
+      return Short.class;
+    }
 
-    MethodSpec(Method m, List<String> methodParams, String customName) {
-      method = m;
-      paramNames = methodParams;
-      name = customName;
+    private static Object defaultValue(Class<?> parameterType) {
+      if (parameterType == int.class || parameterType == Integer.class) {
+        return 0;
+      } else if (parameterType == long.class || parameterType == Long.class) {
+        return 0L;
+      } else if (parameterType == float.class || parameterType == Float.class) {
+        return 0f;
+      } else if (parameterType == double.class || parameterType == Double.class) {
+        return 0d;
+      } else if (parameterType == byte.class || parameterType == Byte.class) {
+        return (byte) 0;
+      } else if (parameterType == char.class || parameterType == Character.class) {
+        return (char) 0;
+      } else if (parameterType == short.class || parameterType == Short.class) {
+        return (short) 0;
+      } else if (parameterType == boolean.class || parameterType == Boolean.class) {
+        return false;
+      }
+      return null;
     }
   }
-}
\ No newline at end of file
+}
@@ -24,8 +24,16 @@
 package com.telly.groundy;
 
 import android.os.Bundle;
-import java.lang.annotation.Annotation;
 
 public interface ResultProxy {
-  void apply(Object target, Class<? extends Annotation> callbackAnnotation, Bundle resultData);
+  /**
+   * @param callbackKind one of the {@link CallbackKind} codes
+   */
+  void apply(Object target, int callbackKind, Bundle resultData);
+
+  /**
+   * @return true if a callback of the handler takes {@link Groundy#ORIGINAL_PARAMS}; the service
+   *         only sends the original params back if some handler of the task needs them
+   */
+  boolean usesOriginalParams();
 }
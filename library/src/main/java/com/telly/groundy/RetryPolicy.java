@@ -0,0 +1,144 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+import java.util.Random;
+
+/**
+ * Describes how failed executions of a task are retried. Retries are spaced using exponential
+ * backoff: the n-th retry waits {@code baseDelay * 2^(n - 1)} milliseconds, capped to the max
+ * delay, and a random part of that delay (the jitter) is shaved off so that tasks which failed
+ * together do not retry together.
+ *
+ * @see Groundy#retry(RetryPolicy)
+ * @see GroundyTask#retryPolicy()
+ */
+public final class RetryPolicy {
+  public static final long DEFAULT_MAX_DELAY = 5 * 60 * 1000;
+  public static final float DEFAULT_JITTER = 0.5f;
+
+  private static final String KEY_MAX_ATTEMPTS = "com.telly.groundy.key.RETRY_MAX_ATTEMPTS";
+  private static final String KEY_BASE_DELAY = "com.telly.groundy.key.RETRY_BASE_DELAY";
+  private static final String KEY_MAX_DELAY = "com.telly.groundy.key.RETRY_MAX_DELAY";
+  private static final String KEY_JITTER = "com.telly.groundy.key.RETRY_JITTER";
+  private static final Random RANDOM = new Random();
+
+  private final int mMaxAttempts;
+  private final long mBaseDelay;
+  private long mMaxDelay = DEFAULT_MAX_DELAY;
+  private float mJitter = DEFAULT_JITTER;
+
+  /**
+   * @param maxAttempts     total amount of executions, including the first one
+   * @param baseDelayMillis time to wait before the first retry
+   */
+  public RetryPolicy(int maxAttempts, long baseDelayMillis) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("Max attempts must be at least 1");
+    }
+    if (baseDelayMillis < 0) {
+      throw new IllegalArgumentException("Base delay cannot be negative");
+    }
+    mMaxAttempts = maxAttempts;
+    mBaseDelay = baseDelayMillis;
+  }
+
+  /**
+   * @param maxDelayMillis upper bound for the time to wait between attempts
+   * @return itself
+   */
+  public RetryPolicy maxDelay(long maxDelayMillis) {
+    if (maxDelayMillis < 0) {
+      throw new IllegalArgumentException("Max delay cannot be negative");
+    }
+    mMaxDelay = maxDelayMillis;
+    return this;
+  }
+
+  /**
+   * @param jitter fraction of each delay that can be randomly shaved off; 0 disables jitter and 1
+   *               makes delays go anywhere from 0 to the computed delay
+   * @return itself
+   */
+  public RetryPolicy jitter(float jitter) {
+    if (jitter < 0 || jitter > 1) {
+      throw new IllegalArgumentException("Jitter must be between 0 and 1");
+    }
+    mJitter = jitter;
+    return this;
+  }
+
+  public int getMaxAttempts() {
+    return mMaxAttempts;
+  }
+
+  public long getBaseDelay() {
+    return mBaseDelay;
+  }
+
+  public long getMaxDelay() {
+    return mMaxDelay;
+  }
+
+  public float getJitter() {
+    return mJitter;
+  }
+
+  /**
+   * @param attempt the attempt that just failed, starting at 1
+   * @return milliseconds to wait before the next attempt
+   */
+  long getDelay(int attempt) {
+    long delay = mBaseDelay;
+    for (int i = 1; i < attempt && delay < mMaxDelay; i++) {
+      delay <<= 1;
+    }
+    delay = Math.min(delay, mMaxDelay);
+    return delay - (long) (delay * mJitter * RANDOM.nextFloat());
+  }
+
+  Bundle toBundle() {
+    Bundle bundle = new Bundle();
+    bundle.putInt(KEY_MAX_ATTEMPTS, mMaxAttempts);
+    bundle.putLong(KEY_BASE_DELAY, mBaseDelay);
+    bundle.putLong(KEY_MAX_DELAY, mMaxDelay);
+    bundle.putFloat(KEY_JITTER, mJitter);
+    return bundle;
+  }
+
+  static RetryPolicy fromBundle(Bundle bundle) {
+    if (bundle == null) {
+      return null;
+    }
+    return new RetryPolicy(bundle.getInt(KEY_MAX_ATTEMPTS, 1), bundle.getLong(KEY_BASE_DELAY))
+        .maxDelay(bundle.getLong(KEY_MAX_DELAY, DEFAULT_MAX_DELAY))
+        .jitter(bundle.getFloat(KEY_JITTER, DEFAULT_JITTER));
+  }
+
+  @Override public String toString() {
+    return "RetryPolicy{maxAttempts=" + mMaxAttempts + ", baseDelay=" + mBaseDelay
+        + ", maxDelay=" + mMaxDelay + ", jitter=" + mJitter + '}';
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the commands one at a time, in the order they were submitted, on top of another executor
+ * which may run them on any of its threads.
+ */
+final class SerialExecutor implements Executor {
+  private static final String TAG = "groundy:serial";
+  private final Executor mExecutor;
+  private final LinkedList<Runnable> mCommands = new LinkedList<Runnable>();
+  private final Runnable mDrain = new Runnable() {
+    @Override public void run() {
+      drain();
+    }
+  };
+  private boolean mScheduled;
+
+  SerialExecutor(Executor executor) {
+    if (executor == null) {
+      throw new IllegalArgumentException("Executor cannot be null");
+    }
+    mExecutor = executor;
+  }
+
+  @Override public void execute(Runnable command) {
+    synchronized (this) {
+      mCommands.add(command);
+      if (mScheduled) {
+        return;
+      }
+      mScheduled = true;
+    }
+    try {
+      mExecutor.execute(mDrain);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        mCommands.remove(command);
+        mScheduled = false;
+      }
+      throw e;
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      Runnable command;
+      synchronized (this) {
+        command = mCommands.poll();
+        if (command == null) {
+          mScheduled = false;
+          return;
+        }
+      }
+      try {
+        command.run();
+      } catch (RuntimeException e) {
+        // a failing command must not stop the ones queued after it
+        L.e(TAG, "Command failed: " + command, e);
+      }
+    }
+  }
+}
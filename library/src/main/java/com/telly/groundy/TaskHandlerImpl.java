@@ -45,6 +45,7 @@ class TaskHandlerImpl implements TaskHandler {
     if (callbacksReceiver != null) {
       callbacksReceiver.clearHandlers();
     }
+    mGroundy.unregisterFromChannel();
   }
 
   @Override public void appendCallbacks(Object... handlers) {
@@ -0,0 +1,420 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file where {@link GroundyService} records when tasks are received, started and
+ * finished, so that unfinished tasks can be executed again after the process dies.
+ * <p/>
+ * Records are written by a background thread which writes everything pending at once and then
+ * syncs the file a single time (group commit); so recording a task never blocks the caller on
+ * disk I/O, at the cost of losing the last few records if the device powers off abruptly. Each
+ * record has a checksum, and a torn or corrupt tail is discarded when the journal is loaded. Once
+ * finished tasks make up most of the file, it is compacted by rewriting the unfinished ones.
+ * <p/>
+ * Task extras are stored using {@link Parcel#marshall()}, which is only meant to be read by the
+ * same version of the platform and the app. Tasks whose arguments contain binder objects or file
+ * descriptors cannot be recorded.
+ */
+final class TaskJournal {
+  private static final String TAG = "TaskJournal";
+
+  private static final byte RECEIVED = 1;
+  private static final byte STARTED = 2;
+  private static final byte FINISHED = 3;
+  private static final int MIN_RECORDS_TO_COMPACT = 256;
+  // type, id and async flag precede the extras of a received record
+  private static final int RECEIVED_HEADER = 1 + 8 + 1;
+
+  private final File mFile;
+  private final ClassLoader mClassLoader;
+  private final List<byte[]> mPending = new LinkedList<byte[]>();
+
+  // only touched by the writer thread once the journal is open
+  private final Map<Long, byte[]> mReceived = new LinkedHashMap<Long, byte[]>();
+  private final Set<Long> mStarted = new HashSet<Long>();
+  private int mRecords;
+  private DataOutputStream mOutput;
+  private FileOutputStream mFileOutput;
+
+  private Thread mWriter;
+  private boolean mClosed;
+
+  /**
+   * @param file        where records are stored
+   * @param classLoader used to read task arguments back
+   */
+  TaskJournal(File file, ClassLoader classLoader) {
+    mFile = file;
+    mClassLoader = classLoader;
+  }
+
+  /**
+   * Loads the journal and starts accepting records. It must be called once, before recording
+   * anything.
+   *
+   * @return the tasks that were received but never finished, in the order they were received
+   */
+  synchronized List<Entry> open() {
+    List<Entry> unfinished = new ArrayList<Entry>();
+    for (MarshalledEntry marshalled : openMarshalled()) {
+      Bundle extras = unmarshall(marshalled.mData);
+      if (extras != null) {
+        unfinished.add(
+            new Entry(marshalled.mId, extras, marshalled.mAsync, marshalled.mStarted));
+      }
+    }
+    return unfinished;
+  }
+
+  /** Same as {@link #open()}, but the extras of the tasks are left marshalled. */
+  synchronized List<MarshalledEntry> openMarshalled() {
+    List<MarshalledEntry> unfinished = new ArrayList<MarshalledEntry>();
+    try {
+      load();
+      compact();
+    } catch (IOException e) {
+      L.e(TAG, "Could not open task journal " + mFile, e);
+      mReceived.clear();
+      mStarted.clear();
+      return unfinished;
+    }
+
+    for (byte[] record : mReceived.values()) {
+      long id = readId(record);
+      byte[] data = new byte[record.length - RECEIVED_HEADER];
+      System.arraycopy(record, RECEIVED_HEADER, data, 0, data.length);
+      boolean async = record[RECEIVED_HEADER - 1] == 1;
+      unfinished.add(new MarshalledEntry(id, data, async, mStarted.contains(id)));
+    }
+    mWriter = new WriterThread();
+    mWriter.start();
+    return unfinished;
+  }
+
+  /**
+   * @param id     task id
+   * @param extras everything needed to rebuild the task
+   * @param async  true if the task was executed rather than queued
+   */
+  void received(long id, Bundle extras, boolean async) {
+    byte[] data;
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeBundle(extras);
+      data = parcel.marshall();
+    } catch (RuntimeException e) {
+      L.e(TAG, "Task " + id + " cannot be recorded in the journal: " + e.getMessage());
+      return;
+    } finally {
+      parcel.recycle();
+    }
+    received(id, data, async);
+  }
+
+  /**
+   * @param id    task id
+   * @param data  the marshalled extras of the task
+   * @param async true if the task was executed rather than queued
+   */
+  void received(long id, byte[] data, boolean async) {
+    ByteArrayOutputStream body = new ByteArrayOutputStream(data.length + 10);
+    DataOutputStream output = new DataOutputStream(body);
+    try {
+      output.writeByte(RECEIVED);
+      output.writeLong(id);
+      output.writeBoolean(async);
+      output.write(data);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    append(body.toByteArray());
+  }
+
+  void started(long id) {
+    append(simpleRecord(STARTED, id));
+  }
+
+  void finished(long id) {
+    append(simpleRecord(FINISHED, id));
+  }
+
+  /** Writes whatever is pending and stops the writer thread. */
+  void close() {
+    Thread writer;
+    synchronized (this) {
+      mClosed = true;
+      notifyAll();
+      writer = mWriter;
+    }
+    if (writer != null) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private synchronized void append(byte[] record) {
+    if (mWriter == null || mClosed) {
+      return;
+    }
+    mPending.add(record);
+    notifyAll();
+  }
+
+  /** @return the records to write, or null if the journal was closed and everything written */
+  private synchronized List<byte[]> awaitRecords() {
+    while (mPending.isEmpty() && !mClosed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        L.e(TAG, "Journal writer interrupted", e);
+      }
+    }
+    if (mPending.isEmpty()) {
+      return null;
+    }
+    List<byte[]> records = new ArrayList<byte[]>(mPending);
+    mPending.clear();
+    return records;
+  }
+
+  private void write(List<byte[]> records) throws IOException {
+    for (byte[] record : records) {
+      writeRecord(mOutput, record);
+      track(record);
+    }
+    mOutput.flush();
+    mFileOutput.getFD().sync();
+
+    if (mRecords >= MIN_RECORDS_TO_COMPACT && mRecords > 2 * (mReceived.size() + mStarted.size())) {
+      compact();
+    }
+  }
+
+  private void load() throws IOException {
+    DataInputStream input;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+    } catch (FileNotFoundException e) {
+      return;
+    }
+
+    try {
+      CRC32 crc = new CRC32();
+      while (true) {
+        byte[] record;
+        try {
+          int length = input.readInt();
+          long checksum = input.readLong();
+          if (length <= 0 || length > mFile.length()) {
+            break;
+          }
+          record = new byte[length];
+          input.readFully(record);
+          crc.reset();
+          crc.update(record);
+          if (crc.getValue() != checksum) {
+            break;
+          }
+        } catch (EOFException e) {
+          break;
+        }
+        track(record);
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  /** Rewrites the journal with only the unfinished tasks. */
+  private void compact() throws IOException {
+    if (mOutput != null) {
+      mOutput.close();
+    }
+
+    File temp = new File(mFile.getPath() + ".tmp");
+    FileOutputStream fileOutput = new FileOutputStream(temp);
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+    try {
+      for (Map.Entry<Long, byte[]> received : mReceived.entrySet()) {
+        writeRecord(output, received.getValue());
+        if (mStarted.contains(received.getKey())) {
+          writeRecord(output, simpleRecord(STARTED, received.getKey()));
+        }
+      }
+      output.flush();
+      fileOutput.getFD().sync();
+    } finally {
+      output.close();
+    }
+    if (!temp.renameTo(mFile)) {
+      throw new IOException("Could not replace " + mFile);
+    }
+    mRecords = mReceived.size() + mStarted.size();
+
+    mFileOutput = new FileOutputStream(mFile, true);
+    mOutput = new DataOutputStream(new BufferedOutputStream(mFileOutput));
+  }
+
+  private void track(byte[] record) {
+    long id = readId(record);
+    switch (record[0]) {
+      case RECEIVED:
+        mReceived.put(id, record);
+        break;
+      case STARTED:
+        if (mReceived.containsKey(id)) {
+          mStarted.add(id);
+        }
+        break;
+      case FINISHED:
+        mReceived.remove(id);
+        mStarted.remove(id);
+        break;
+    }
+    mRecords++;
+  }
+
+  private Bundle unmarshall(byte[] data) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.unmarshall(data, 0, data.length);
+      parcel.setDataPosition(0);
+      return parcel.readBundle(mClassLoader);
+    } catch (RuntimeException e) {
+      L.e(TAG, "Could not read journal entry", e);
+      return null;
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private static void writeRecord(DataOutputStream output, byte[] record) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    output.writeInt(record.length);
+    output.writeLong(crc.getValue());
+    output.write(record);
+  }
+
+  private static byte[] simpleRecord(byte type, long id) {
+    byte[] record = new byte[9];
+    record[0] = type;
+    for (int i = 0; i < 8; i++) {
+      record[1 + i] = (byte) (id >>> (56 - 8 * i));
+    }
+    return record;
+  }
+
+  private static long readId(byte[] record) {
+    long id = 0;
+    for (int i = 0; i < 8; i++) {
+      id = (id << 8) | (record[1 + i] & 0xff);
+    }
+    return id;
+  }
+
+  /** A task that was received but not finished. */
+  static final class Entry {
+    final long mId;
+    final Bundle mExtras;
+    final boolean mAsync;
+    final boolean mStarted;
+
+    Entry(long id, Bundle extras, boolean async, boolean started) {
+      mId = id;
+      mExtras = extras;
+      mAsync = async;
+      mStarted = started;
+    }
+  }
+
+  /** A task that was received but not finished, whose extras are still marshalled. */
+  static final class MarshalledEntry {
+    final long mId;
+    final byte[] mData;
+    final boolean mAsync;
+    final boolean mStarted;
+
+    MarshalledEntry(long id, byte[] data, boolean async, boolean started) {
+      mId = id;
+      mData = data;
+      mAsync = async;
+      mStarted = started;
+    }
+  }
+
+  private final class WriterThread extends Thread {
+    WriterThread() {
+      super("GroundyJournal");
+    }
+
+    @Override
+    public void run() {
+      List<byte[]> records;
+      try {
+        while ((records = awaitRecords()) != null) {
+          write(records);
+        }
+      } catch (IOException e) {
+        L.e(TAG, "Could not write to task journal " + mFile, e);
+      } finally {
+        synchronized (TaskJournal.this) {
+          mClosed = true;
+          mPending.clear();
+        }
+        try {
+          mOutput.close();
+        } catch (IOException e) {
+          L.e(TAG, "Could not close task journal " + mFile, e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tasks known by a {@link GroundyService}, indexed by id, by group and by task class. Lookups don't
+ * lock; changes are serialized so that indexes always agree with each other, and so that changes
+ * involving several tasks (e.g. registering a batch) are never seen half done by other changes.
+ * Queries by group or class cost as much as the amount of tasks they return.
+ */
+final class TaskRegistry {
+  private final Map<Long, GroundyTask> mTasks = new ConcurrentHashMap<Long, GroundyTask>();
+  private final Map<Integer, Map<Long, GroundyTask>> mByGroup =
+      new ConcurrentHashMap<Integer, Map<Long, GroundyTask>>();
+  private final Map<Class<?>, Map<Long, GroundyTask>> mByType =
+      new ConcurrentHashMap<Class<?>, Map<Long, GroundyTask>>();
+
+  GroundyTask get(long id) {
+    return mTasks.get(id);
+  }
+
+  boolean contains(long id) {
+    return mTasks.containsKey(id);
+  }
+
+  boolean isEmpty() {
+    return mTasks.isEmpty();
+  }
+
+  /** Registers all the tasks at once; tasks with the same id are replaced. */
+  synchronized void putAll(Collection<GroundyTask> tasks) {
+    for (GroundyTask task : tasks) {
+      GroundyTask previous = mTasks.put(task.getId(), task);
+      if (previous != null) {
+        unindex(previous);
+      }
+      index(task);
+    }
+  }
+
+  /**
+   * Replaces a task with another one using the same id.
+   *
+   * @return false if the current task is not registered anymore
+   */
+  synchronized boolean replace(GroundyTask current, GroundyTask replacement) {
+    if (mTasks.get(current.getId()) != current) {
+      return false;
+    }
+    unindex(current);
+    mTasks.put(replacement.getId(), replacement);
+    index(replacement);
+    return true;
+  }
+
+  /** @return the task that was removed or null if there was no task with this id */
+  synchronized GroundyTask remove(long id) {
+    GroundyTask task = mTasks.remove(id);
+    if (task != null) {
+      unindex(task);
+    }
+    return task;
+  }
+
+  /** Removes the task only if it is the one registered with its id. */
+  synchronized boolean remove(GroundyTask task) {
+    if (mTasks.get(task.getId()) != task) {
+      return false;
+    }
+    mTasks.remove(task.getId());
+    unindex(task);
+    return true;
+  }
+
+  /** @return the tasks of the group, which are not registered anymore */
+  synchronized List<GroundyTask> removeGroup(int groupId) {
+    Map<Long, GroundyTask> group = mByGroup.get(groupId);
+    if (group == null) {
+      return new ArrayList<GroundyTask>(0);
+    }
+    List<GroundyTask> removed = new ArrayList<GroundyTask>(group.values());
+    for (GroundyTask task : removed) {
+      mTasks.remove(task.getId());
+      unindex(task);
+    }
+    return removed;
+  }
+
+  /** @return the tasks that were registered */
+  synchronized List<GroundyTask> clear() {
+    List<GroundyTask> removed = new ArrayList<GroundyTask>(mTasks.values());
+    mTasks.clear();
+    mByGroup.clear();
+    mByType.clear();
+    return removed;
+  }
+
+  /** @return a snapshot of the tasks of the given class */
+  List<GroundyTask> getByType(Class<? extends GroundyTask> type) {
+    Map<Long, GroundyTask> tasks = mByType.get(type);
+    return tasks == null ? new ArrayList<GroundyTask>(0) : new ArrayList<GroundyTask>(tasks.values());
+  }
+
+  private void index(GroundyTask task) {
+    indexIn(mByGroup, task.getGroupId(), task);
+    indexIn(mByType, task.getClass(), task);
+  }
+
+  private void unindex(GroundyTask task) {
+    unindexFrom(mByGroup, task.getGroupId(), task);
+    unindexFrom(mByType, task.getClass(), task);
+  }
+
+  private static <K> void indexIn(Map<K, Map<Long, GroundyTask>> index, K key, GroundyTask task) {
+    Map<Long, GroundyTask> tasks = index.get(key);
+    if (tasks == null) {
+      tasks = new ConcurrentHashMap<Long, GroundyTask>();
+      index.put(key, tasks);
+    }
+    tasks.put(task.getId(), task);
+  }
+
+  private static <K> void unindexFrom(Map<K, Map<Long, GroundyTask>> index, K key,
+      GroundyTask task) {
+    Map<Long, GroundyTask> tasks = index.get(key);
+    if (tasks != null && tasks.get(task.getId()) == task) {
+      tasks.remove(task.getId());
+      if (tasks.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+}
@@ -280,7 +280,8 @@ public class TaskResult {
 
   /**
    * Inserts a byte array value into the mapping of this Bundle, replacing any existing value for
-   * the given key.  Either key or value may be null.
+   * the given key.  Either key or value may be null. Arrays that can be larger than a few hundred
+   * KB must be added as a {@link LargeValue} instead, since Binder can't send them.
    *
    * @param key a String, or null
    * @param value a byte array object, or null
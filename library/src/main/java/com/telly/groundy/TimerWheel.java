@@ -0,0 +1,246 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel used by {@link GroundyService} to run work in the future. Scheduling and
+ * cancelling are O(1) no matter how many timeouts are pending; the price is that timeouts expire
+ * with the granularity of a tick. A single thread drives the wheel and it only lives while there
+ * are pending timeouts. Expired work runs on that thread, so it must be short.
+ */
+class TimerWheel {
+  private static final String TAG = "TimerWheel";
+
+  private final String mName;
+  private final long mTickMillis;
+  private final Bucket[] mBuckets;
+  private final int mMask;
+
+  private Thread mThread;
+  private long mStartTime;
+  private long mNextTick;
+  private int mPending;
+
+  /**
+   * @param name       used to name the thread driving the wheel
+   * @param tickMillis duration of each tick; timeouts can expire up to this late
+   * @param ticksPerWheel amount of buckets, rounded up to a power of two
+   */
+  TimerWheel(String name, long tickMillis, int ticksPerWheel) {
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("Tick duration must be greater than zero");
+    }
+    if (ticksPerWheel <= 0) {
+      throw new IllegalArgumentException("Ticks per wheel must be greater than zero");
+    }
+    int size = 1;
+    while (size < ticksPerWheel) {
+      size <<= 1;
+    }
+
+    mName = name;
+    mTickMillis = tickMillis;
+    mMask = size - 1;
+    mBuckets = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      mBuckets[i] = new Bucket();
+    }
+  }
+
+  /**
+   * @param runnable    work to do once the delay expires
+   * @param delayMillis time to wait before running the work
+   * @return a handle that can be used to cancel the timeout
+   */
+  synchronized Timeout schedule(Runnable runnable, long delayMillis) {
+    if (mThread == null) {
+      mStartTime = now();
+      mNextTick = 0;
+      mThread = new WheelThread(mName);
+      mThread.start();
+    }
+
+    long elapsed = now() + Math.max(delayMillis, 0) - mStartTime;
+    // tick n is processed once (n + 1) ticks have elapsed, so this never expires too early
+    long tick = Math.max(elapsed / mTickMillis, mNextTick);
+    Timeout timeout = new Timeout(runnable, (tick - mNextTick) / mBuckets.length);
+    mBuckets[(int) (tick & mMask)].add(timeout);
+    mPending++;
+    return timeout;
+  }
+
+  /** Cancels every pending timeout. */
+  synchronized void clear() {
+    for (Bucket bucket : mBuckets) {
+      bucket.clear();
+    }
+    mPending = 0;
+    notifyAll();
+  }
+
+  private synchronized boolean cancel(Timeout timeout) {
+    if (timeout.mBucket == null) {
+      return false;
+    }
+    timeout.mBucket.remove(timeout);
+    mPending--;
+    return true;
+  }
+
+  /**
+   * The wheel runs on the time elapsed since boot, which keeps counting while the device sleeps
+   * and is not affected by changes to the wall clock.
+   */
+  long now() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  /** @return work that expired in the current tick or null if the thread must die */
+  private synchronized List<Runnable> awaitTick() {
+    long tickTime = mStartTime + (mNextTick + 1) * mTickMillis;
+    long now;
+    while (mPending > 0 && (now = now()) < tickTime) {
+      try {
+        wait(tickTime - now);
+      } catch (InterruptedException e) {
+        L.e(TAG, "Timer wheel thread interrupted", e);
+      }
+    }
+    if (mPending == 0) {
+      mThread = null;
+      return null;
+    }
+
+    List<Runnable> expired = new ArrayList<Runnable>();
+    Bucket bucket = mBuckets[(int) (mNextTick & mMask)];
+    Timeout timeout = bucket.mHead;
+    while (timeout != null) {
+      Timeout next = timeout.mNext;
+      if (timeout.mRemainingRounds > 0) {
+        timeout.mRemainingRounds--;
+      } else {
+        bucket.remove(timeout);
+        mPending--;
+        expired.add(timeout.mRunnable);
+      }
+      timeout = next;
+    }
+    mNextTick++;
+    return expired;
+  }
+
+  private synchronized void onThreadDied(Thread thread) {
+    if (mThread == thread) {
+      mThread = null;
+    }
+  }
+
+  /** A pending piece of work. */
+  final class Timeout {
+    private final Runnable mRunnable;
+    private long mRemainingRounds;
+    private Bucket mBucket;
+    private Timeout mPrevious;
+    private Timeout mNext;
+
+    private Timeout(Runnable runnable, long remainingRounds) {
+      mRunnable = runnable;
+      mRemainingRounds = remainingRounds;
+    }
+
+    /** @return true if the timeout was cancelled before expiring */
+    boolean cancel() {
+      return TimerWheel.this.cancel(this);
+    }
+  }
+
+  /** Doubly linked list of the timeouts of a tick, so any of them can be removed in O(1). */
+  private static final class Bucket {
+    private Timeout mHead;
+    private Timeout mTail;
+
+    void add(Timeout timeout) {
+      timeout.mBucket = this;
+      timeout.mPrevious = mTail;
+      if (mTail == null) {
+        mHead = timeout;
+      } else {
+        mTail.mNext = timeout;
+      }
+      mTail = timeout;
+    }
+
+    void remove(Timeout timeout) {
+      if (timeout.mPrevious == null) {
+        mHead = timeout.mNext;
+      } else {
+        timeout.mPrevious.mNext = timeout.mNext;
+      }
+      if (timeout.mNext == null) {
+        mTail = timeout.mPrevious;
+      } else {
+        timeout.mNext.mPrevious = timeout.mPrevious;
+      }
+      timeout.mBucket = null;
+      timeout.mPrevious = null;
+      timeout.mNext = null;
+    }
+
+    void clear() {
+      while (mHead != null) {
+        remove(mHead);
+      }
+    }
+  }
+
+  private final class WheelThread extends Thread {
+    WheelThread(String name) {
+      super(name);
+    }
+
+    @Override
+    public void run() {
+      try {
+        List<Runnable> expired;
+        while ((expired = awaitTick()) != null) {
+          for (Runnable runnable : expired) {
+            try {
+              runnable.run();
+            } catch (RuntimeException e) {
+              // the rest of the timeouts must still expire
+              L.e(TAG, "Timeout failed", e);
+            }
+          }
+        }
+      } finally {
+        // if it died unexpectedly, the next timeout scheduled starts a new thread
+        onThreadDied(this);
+      }
+    }
+  }
+}
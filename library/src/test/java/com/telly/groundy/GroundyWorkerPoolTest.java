@@ -0,0 +1,176 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GroundyWorkerPoolTest {
+  private GroundyWorkerPool mPool;
+
+  @Before public void setUp() {
+    L.logEnabled = false;
+    mPool = newPool(1);
+  }
+
+  @After public void tearDown() {
+    mPool.shutdown();
+  }
+
+  @Test public void runsQueuedWork() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(3);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(mPool.execute(countDown(latch)));
+    }
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+  }
+
+  @Test public void abandonInterruptsStuckJobAndReplacesItsWorker() throws InterruptedException {
+    StuckJob stuck = new StuckJob();
+    CountDownLatch queued = new CountDownLatch(1);
+    mPool.execute(stuck);
+    assertTrue(stuck.mStarted.await(1, TimeUnit.SECONDS));
+    mPool.execute(countDown(queued));
+
+    // the only worker is busy so the queued job waits for it
+    assertFalse(queued.await(50, TimeUnit.MILLISECONDS));
+
+    assertTrue(mPool.abandon(stuck));
+    assertTrue(stuck.mInterrupted.await(1, TimeUnit.SECONDS));
+    assertTrue(queued.await(1, TimeUnit.SECONDS));
+  }
+
+  @Test public void abandonIgnoresJobsNotRunning() throws InterruptedException {
+    StuckJob stuck = new StuckJob();
+    Runnable pending = countDown(new CountDownLatch(1));
+    mPool.execute(stuck);
+    assertTrue(stuck.mStarted.await(1, TimeUnit.SECONDS));
+    mPool.execute(pending);
+
+    assertFalse(mPool.abandon(pending));
+    assertFalse(mPool.abandon(countDown(new CountDownLatch(1))));
+    assertFalse(stuck.mInterrupted.await(50, TimeUnit.MILLISECONDS));
+    stuck.mRelease.countDown();
+  }
+
+  @Test public void abandonIgnoresJobsThatAlreadyReturned() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    Runnable finished = countDown(done);
+    mPool.execute(finished);
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+
+    // the same worker picks the next job, which must not be interrupted
+    StuckJob stuck = new StuckJob();
+    mPool.execute(stuck);
+    assertTrue(stuck.mStarted.await(1, TimeUnit.SECONDS));
+
+    assertFalse(mPool.abandon(finished));
+    assertFalse(stuck.mInterrupted.await(50, TimeUnit.MILLISECONDS));
+    stuck.mRelease.countDown();
+  }
+
+  @Test public void abandonedWorkerDoesNotRunMoreWork() throws InterruptedException {
+    final Thread[] threads = new Thread[2];
+    final CountDownLatch ran = new CountDownLatch(1);
+    StuckJob stuck = new StuckJob() {
+      @Override public void run() {
+        threads[0] = Thread.currentThread();
+        super.run();
+      }
+    };
+    mPool.execute(stuck);
+    assertTrue(stuck.mStarted.await(1, TimeUnit.SECONDS));
+    assertTrue(mPool.abandon(stuck));
+    assertTrue(stuck.mInterrupted.await(1, TimeUnit.SECONDS));
+
+    mPool.execute(new Runnable() {
+      @Override public void run() {
+        threads[1] = Thread.currentThread();
+        ran.countDown();
+      }
+    });
+    assertTrue(ran.await(1, TimeUnit.SECONDS));
+    assertFalse(threads[0] == threads[1]);
+  }
+
+  @Test public void keepsRunningAfterWorkFails() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    mPool.execute(new Runnable() {
+      @Override public void run() {
+        throw new IllegalStateException("boom");
+      }
+    });
+    mPool.execute(countDown(latch));
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+  }
+
+  @Test public void rejectsWorkAfterShutdown() {
+    mPool.shutdown();
+    assertFalse(mPool.execute(countDown(new CountDownLatch(1))));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsZeroThreads() {
+    newPool(0);
+  }
+
+  private static Runnable countDown(final CountDownLatch latch) {
+    return new Runnable() {
+      @Override public void run() {
+        latch.countDown();
+      }
+    };
+  }
+
+  private static GroundyWorkerPool newPool(int maxThreads) {
+    return new GroundyWorkerPool("test", maxThreads, 100, new LinkedList<Runnable>()) {
+      @Override long now() {
+        return System.nanoTime() / 1000000;
+      }
+    };
+  }
+
+  /** Blocks until released or interrupted. */
+  private static class StuckJob implements Runnable {
+    final CountDownLatch mStarted = new CountDownLatch(1);
+    final CountDownLatch mInterrupted = new CountDownLatch(1);
+    final CountDownLatch mRelease = new CountDownLatch(1);
+
+    @Override public void run() {
+      mStarted.countDown();
+      try {
+        mRelease.await();
+      } catch (InterruptedException e) {
+        mInterrupted.countDown();
+      }
+    }
+  }
+}
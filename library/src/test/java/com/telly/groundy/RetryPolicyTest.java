@@ -0,0 +1,78 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.telly.groundy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+  @Test public void doublesDelayOnEveryAttempt() {
+    RetryPolicy policy = new RetryPolicy(5, 100).jitter(0);
+    assertEquals(100, policy.getDelay(1));
+    assertEquals(200, policy.getDelay(2));
+    assertEquals(400, policy.getDelay(3));
+    assertEquals(800, policy.getDelay(4));
+  }
+
+  @Test public void capsDelayToMaxDelay() {
+    RetryPolicy policy = new RetryPolicy(100, 1000).maxDelay(5000).jitter(0);
+    assertEquals(4000, policy.getDelay(3));
+    assertEquals(5000, policy.getDelay(4));
+    // must not overflow no matter how many attempts were made
+    assertEquals(5000, policy.getDelay(100));
+  }
+
+  @Test public void jitterOnlyShortensDelay() {
+    RetryPolicy policy = new RetryPolicy(5, 1000).jitter(0.5f);
+    for (int i = 0; i < 100; i++) {
+      long delay = policy.getDelay(1);
+      assertTrue(delay > 500 && delay <= 1000);
+    }
+  }
+
+  @Test public void zeroBaseDelayRetriesRightAway() {
+    assertEquals(0, new RetryPolicy(3, 0).getDelay(3));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsZeroAttempts() {
+    new RetryPolicy(0, 100);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNegativeBaseDelay() {
+    new RetryPolicy(1, -1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNegativeMaxDelay() {
+    new RetryPolicy(1, 100).maxDelay(-1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsJitterAboveOne() {
+    new RetryPolicy(1, 100).jitter(1.5f);
+  }
+}
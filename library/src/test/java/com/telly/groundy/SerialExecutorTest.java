@@ -0,0 +1,121 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.telly.groundy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SerialExecutorTest {
+  private ExecutorService mPool;
+
+  @Before public void setUp() {
+    L.logEnabled = false;
+    mPool = Executors.newFixedThreadPool(4);
+  }
+
+  @After public void tearDown() {
+    mPool.shutdownNow();
+  }
+
+  @Test public void runsCommandsInOrder() throws InterruptedException {
+    SerialExecutor executor = new SerialExecutor(mPool);
+    List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+    CountDownLatch latch = new CountDownLatch(100);
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 100; i++) {
+      executor.execute(record(ran, i, latch));
+      expected.add(i);
+    }
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertEquals(expected, ran);
+  }
+
+  @Test public void failingCommandDoesNotStopTheRest() throws InterruptedException {
+    SerialExecutor executor = new SerialExecutor(mPool);
+    List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+    CountDownLatch latch = new CountDownLatch(2);
+    executor.execute(record(ran, 1, latch));
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        throw new IllegalStateException("boom");
+      }
+    });
+    executor.execute(record(ran, 2, latch));
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertEquals(2, ran.size());
+  }
+
+  @Test public void recoversWhenTheUnderlyingExecutorRejects() throws InterruptedException {
+    final boolean[] reject = {true};
+    SerialExecutor executor = new SerialExecutor(new Executor() {
+      @Override public void execute(Runnable command) {
+        if (reject[0]) {
+          throw new RejectedExecutionException();
+        }
+        mPool.execute(command);
+      }
+    });
+    List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+    CountDownLatch latch = new CountDownLatch(1);
+    try {
+      executor.execute(record(ran, 1, latch));
+      fail("Rejection should reach the caller");
+    } catch (RejectedExecutionException expected) {
+      // the rejected command must not be run later
+    }
+
+    reject[0] = false;
+    executor.execute(record(ran, 2, latch));
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertEquals(Collections.singletonList(2), ran);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNullExecutor() {
+    new SerialExecutor(null);
+  }
+
+  private static Runnable record(final List<Integer> ran, final int value,
+      final CountDownLatch latch) {
+    return new Runnable() {
+      @Override public void run() {
+        ran.add(value);
+        latch.countDown();
+      }
+    };
+  }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TaskJournalTest {
+  private File mFile;
+
+  @Before public void setUp() throws IOException {
+    L.logEnabled = false;
+    mFile = File.createTempFile("journal", null);
+    assertTrue(mFile.delete());
+  }
+
+  @After public void tearDown() {
+    mFile.delete();
+    new File(mFile.getPath() + ".tmp").delete();
+  }
+
+  @Test public void returnsTasksThatDidNotFinish() {
+    TaskJournal journal = open();
+    journal.received(1, new byte[] {1, 2, 3}, true);
+    journal.received(2, new byte[] {4}, false);
+    journal.received(3, new byte[] {5}, false);
+    journal.started(1);
+    journal.started(2);
+    journal.finished(2);
+    journal.close();
+
+    List<TaskJournal.MarshalledEntry> entries = reopen();
+    assertEquals(2, entries.size());
+    assertEntry(entries.get(0), 1, new byte[] {1, 2, 3}, true, true);
+    assertEntry(entries.get(1), 3, new byte[] {5}, false, false);
+  }
+
+  @Test public void startedRecordOfUnknownTaskIsIgnored() {
+    TaskJournal journal = open();
+    journal.started(7);
+    journal.finished(7);
+    journal.close();
+
+    assertTrue(reopen().isEmpty());
+  }
+
+  @Test public void discardsTornTail() throws IOException {
+    TaskJournal journal = open();
+    journal.received(1, new byte[] {1, 2, 3}, false);
+    journal.received(2, new byte[] {4, 5, 6}, false);
+    journal.close();
+
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    try {
+      file.setLength(file.length() - 2);
+    } finally {
+      file.close();
+    }
+
+    List<TaskJournal.MarshalledEntry> entries = reopen();
+    assertEquals(1, entries.size());
+    assertEntry(entries.get(0), 1, new byte[] {1, 2, 3}, false, false);
+  }
+
+  @Test public void discardsRecordsWithBadChecksum() throws IOException {
+    TaskJournal journal = open();
+    journal.received(1, new byte[] {1, 2, 3}, false);
+    journal.received(2, new byte[] {4, 5, 6}, false);
+    journal.close();
+
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    try {
+      file.seek(file.length() - 1);
+      file.write(42);
+    } finally {
+      file.close();
+    }
+
+    List<TaskJournal.MarshalledEntry> entries = reopen();
+    assertEquals(1, entries.size());
+    assertEquals(1, entries.get(0).mId);
+  }
+
+  @Test public void discardsRecordsWithBadLength() throws IOException {
+    TaskJournal journal = open();
+    journal.received(1, new byte[] {1, 2, 3}, false);
+    journal.close();
+
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    try {
+      file.seek(file.length());
+      file.writeInt(Integer.MAX_VALUE);
+      file.writeLong(0);
+    } finally {
+      file.close();
+    }
+
+    List<TaskJournal.MarshalledEntry> entries = reopen();
+    assertEquals(1, entries.size());
+    assertEquals(1, entries.get(0).mId);
+  }
+
+  @Test public void keepsWorkingAfterRecovering() throws IOException {
+    TaskJournal journal = open();
+    journal.received(1, new byte[] {1}, false);
+    journal.received(2, new byte[] {2}, false);
+    journal.close();
+
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    try {
+      file.setLength(file.length() - 1);
+    } finally {
+      file.close();
+    }
+
+    journal = new TaskJournal(mFile, getClass().getClassLoader());
+    assertEquals(1, journal.openMarshalled().size());
+    journal.received(3, new byte[] {3}, true);
+    journal.close();
+
+    List<TaskJournal.MarshalledEntry> entries = reopen();
+    assertEquals(2, entries.size());
+    assertEntry(entries.get(0), 1, new byte[] {1}, false, false);
+    assertEntry(entries.get(1), 3, new byte[] {3}, true, false);
+  }
+
+  @Test public void compactsFinishedTasks() {
+    TaskJournal journal = open();
+    for (int id = 1; id <= 1000; id++) {
+      journal.received(id, new byte[64], false);
+      journal.finished(id);
+    }
+    journal.received(1001, new byte[] {7}, false);
+    journal.close();
+
+    // finished tasks are dropped when the journal is opened again
+    assertEquals(1, reopen().size());
+    assertTrue(mFile.length() < 100);
+  }
+
+  private TaskJournal open() {
+    TaskJournal journal = new TaskJournal(mFile, getClass().getClassLoader());
+    assertTrue(journal.openMarshalled().isEmpty());
+    return journal;
+  }
+
+  private List<TaskJournal.MarshalledEntry> reopen() {
+    TaskJournal journal = new TaskJournal(mFile, getClass().getClassLoader());
+    try {
+      return journal.openMarshalled();
+    } finally {
+      journal.close();
+    }
+  }
+
+  private static void assertEntry(TaskJournal.MarshalledEntry entry, long id, byte[] data,
+      boolean async, boolean started) {
+    assertEquals(id, entry.mId);
+    assertArrayEquals(data, entry.mData);
+    assertEquals(async, entry.mAsync);
+    if (started) {
+      assertTrue(entry.mStarted);
+    } else {
+      assertFalse(entry.mStarted);
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+  private static final long TICK = 5;
+
+  private TimerWheel mWheel;
+
+  @Before public void setUp() {
+    L.logEnabled = false;
+    mWheel = newWheel(8);
+  }
+
+  @Test public void runsWorkOnceItsDelayExpires() throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    long start = now();
+    mWheel.schedule(new Runnable() {
+      @Override public void run() {
+        latch.countDown();
+      }
+    }, 50);
+
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertTrue(now() - start >= 50);
+  }
+
+  @Test public void runsWorkDelayedForSeveralRounds() throws InterruptedException {
+    // 8 ticks of 5ms go round in 40ms
+    final CountDownLatch latch = new CountDownLatch(1);
+    long start = now();
+    mWheel.schedule(new Runnable() {
+      @Override public void run() {
+        latch.countDown();
+      }
+    }, 100);
+
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertTrue(now() - start >= 100);
+  }
+
+  @Test public void cancelledWorkNeverRuns() throws InterruptedException {
+    final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch latch = new CountDownLatch(2);
+    TimerWheel.Timeout first = mWheel.schedule(record(ran, "first", latch), 20);
+    TimerWheel.Timeout second = mWheel.schedule(record(ran, "second", latch), 20);
+    mWheel.schedule(record(ran, "third", latch), 20);
+
+    assertTrue(second.cancel());
+    assertFalse(second.cancel());
+    assertTrue(first.cancel());
+    mWheel.schedule(record(ran, "fourth", latch), 30);
+
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    Thread.sleep(50);
+    assertEquals(2, ran.size());
+    assertTrue(ran.contains("third"));
+    assertTrue(ran.contains("fourth"));
+  }
+
+  @Test public void expiredWorkCannotBeCancelled() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    TimerWheel.Timeout timeout =
+        mWheel.schedule(record(new ArrayList<String>(), "work", latch), 0);
+
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertFalse(timeout.cancel());
+  }
+
+  @Test public void clearCancelsEverything() throws InterruptedException {
+    final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    TimerWheel.Timeout timeout = mWheel.schedule(record(ran, "first", null), 20);
+    mWheel.schedule(record(ran, "second", null), 60);
+    mWheel.clear();
+
+    Thread.sleep(100);
+    assertTrue(ran.isEmpty());
+    assertFalse(timeout.cancel());
+  }
+
+  @Test public void keepsRunningAfterWorkFails() throws InterruptedException {
+    final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch latch = new CountDownLatch(1);
+    mWheel.schedule(new Runnable() {
+      @Override public void run() {
+        throw new IllegalStateException("boom");
+      }
+    }, 10);
+    mWheel.schedule(record(ran, "same tick", latch), 10);
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+
+    latch = new CountDownLatch(1);
+    mWheel.schedule(record(ran, "later", latch), 10);
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertEquals(2, ran.size());
+  }
+
+  @Test public void restartsAfterGoingIdle() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    mWheel.schedule(record(new ArrayList<String>(), "first", latch), 0);
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+
+    // the thread dies once nothing is pending
+    Thread.sleep(50);
+    latch = new CountDownLatch(1);
+    mWheel.schedule(record(new ArrayList<String>(), "second", latch), 10);
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsZeroTick() {
+    new TimerWheel("test", 0, 8);
+  }
+
+  private static Runnable record(final List<String> ran, final String name,
+      final CountDownLatch latch) {
+    return new Runnable() {
+      @Override public void run() {
+        ran.add(name);
+        if (latch != null) {
+          latch.countDown();
+        }
+      }
+    };
+  }
+
+  private static TimerWheel newWheel(int ticksPerWheel) {
+    return new TimerWheel("test", TICK, ticksPerWheel) {
+      @Override long now() {
+        return TimerWheelTest.now();
+      }
+    };
+  }
+
+  private static long now() {
+    return System.nanoTime() / 1000000;
+  }
+}